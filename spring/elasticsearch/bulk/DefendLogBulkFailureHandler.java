@@ -0,0 +1,20 @@
+package com.inspur.bss.waf.elasticsearch.bulk;
+
+import org.elasticsearch.action.DocWriteRequest;
+
+import java.util.List;
+
+/**
+ * 防护日志批量写入失败回调
+ * 重试耗尽或bulk请求整体失败后调用,在bulk回调线程上执行,实现不应阻塞;
+ * 可将失败的请求转存(如写入本地文件或消息队列)后补写
+ */
+@FunctionalInterface
+public interface DefendLogBulkFailureHandler {
+
+    /**
+     * @param requests 写入失败的请求,包含索引名、id与文档内容
+     * @param reason   失败原因
+     */
+    void onFailure(List<DocWriteRequest<?>> requests, String reason);
+}
@@ -0,0 +1,266 @@
+package com.inspur.bss.waf.elasticsearch.bulk;
+
+import com.inspur.bss.waf.elasticsearch.document.DefendLogDocument;
+import com.inspur.bss.waf.elasticsearch.index.DefendLogIndexRouter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.data.elasticsearch.annotations.Document;
+import org.springframework.data.elasticsearch.core.EntityMapper;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 防护日志批量写入
+ * 按条数/字节数/时间间隔攒批,限制并发的bulk请求数,429拒绝的条目按退避策略只重试被拒绝的部分;
+ * 待写入的文档数受queueCapacity限制,写满后生产者阻塞直到有批次完成(背压)
+ * 写入语义为至多一次:submit返回只表示文档已进入内存中的批次,进程退出或宕机时未flush的文档会丢失;
+ * 重试耗尽与bulk请求整体失败的文档不会再次提交,只计入失败数并交给{@link DefendLogBulkFailureHandler}
+ * (未配置时只记录日志);存在MeterRegistry时注册 es.bulk.docs(result=indexed/failed) 计数与 es.bulk.queue.depth
+ */
+@Slf4j
+@Component
+public class DefendLogBulkIngester {
+
+    private final RestHighLevelClient client;
+    private final EntityMapper entityMapper;
+    private final DefendLogIndexRouter indexRouter;
+    private final DefendLogBulkFailureHandler failureHandler;
+    private final Counter indexedCounter;
+    private final Counter failedCounter;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${waf.es.bulk.actions:1000}")
+    private int bulkActions;
+
+    @Value("${waf.es.bulk.size-mb:5}")
+    private long bulkSizeMb;
+
+    @Value("${waf.es.bulk.concurrent-requests:2}")
+    private int concurrentRequests;
+
+    @Value("${waf.es.bulk.flush-interval-seconds:5}")
+    private long flushIntervalSeconds;
+
+    @Value("${waf.es.bulk.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${waf.es.bulk.offer-timeout-seconds:60}")
+    private long offerTimeoutSeconds;
+
+    @Value("${waf.es.bulk.retry-times:3}")
+    private int retryTimes;
+
+    @Value("${waf.es.bulk.retry-backoff-millis:100}")
+    private long retryBackoffMillis;
+
+    private String indexType;
+    private BulkProcessor bulkProcessor;
+    private Semaphore queuePermits;
+
+    private final LongAdder submittedDocs = new LongAdder();
+    private final LongAdder indexedDocs = new LongAdder();
+    private final LongAdder failedDocs = new LongAdder();
+    private final AtomicLong lastSampleTime = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong lastSampleIndexed = new AtomicLong();
+
+    @Autowired
+    public DefendLogBulkIngester(RestHighLevelClient client, EntityMapper entityMapper, DefendLogIndexRouter indexRouter,
+                                 ObjectProvider<DefendLogBulkFailureHandler> failureHandler,
+                                 ObjectProvider<MeterRegistry> meterRegistry) {
+        this.client = client;
+        this.entityMapper = entityMapper;
+        this.indexRouter = indexRouter;
+        this.failureHandler = failureHandler.getIfAvailable();
+        this.meterRegistry = meterRegistry.getIfAvailable();
+        if (this.meterRegistry != null) {
+            indexedCounter = Counter.builder("es.bulk.docs").tag("index", "defend-log").tag("result", "indexed").register(this.meterRegistry);
+            failedCounter = Counter.builder("es.bulk.docs").tag("index", "defend-log").tag("result", "failed").register(this.meterRegistry);
+        } else {
+            indexedCounter = null;
+            failedCounter = null;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        Document annotation = AnnotationUtils.findAnnotation(DefendLogDocument.class, Document.class);
+        indexType = annotation.type();
+        //至少容纳在途批次与正在攒的批次,否则定时flush之前生产者会一直阻塞
+        queueCapacity = Math.max(queueCapacity, bulkActions * (concurrentRequests + 1));
+        queuePermits = new Semaphore(queueCapacity);
+        //队列深度依赖queuePermits,创建之后再注册
+        if (meterRegistry != null) {
+            Gauge.builder("es.bulk.queue.depth", this, DefendLogBulkIngester::getQueueDepth)
+                    .tag("index", "defend-log").register(meterRegistry);
+        }
+        bulkProcessor = BulkProcessor.builder(
+                (request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener),
+                new IngestListener())
+                .setBulkActions(bulkActions)
+                .setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+                .setConcurrentRequests(concurrentRequests)
+                .setFlushInterval(TimeValue.timeValueSeconds(flushIntervalSeconds))
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(retryBackoffMillis), retryTimes))
+                .build();
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (bulkProcessor != null && !bulkProcessor.awaitClose(offerTimeoutSeconds, TimeUnit.SECONDS)) {
+            log.warn("防护日志批量写入关闭超时,待写入文档数:{}", getQueueDepth());
+        }
+    }
+
+    /**
+     * 提交文档,队列已满时阻塞,超过offerTimeoutSeconds仍未入队则抛出异常
+     * @param documents
+     */
+    public void submit(List<DefendLogDocument> documents) {
+        for (DefendLogDocument document : documents) {
+            acquire();
+            try {
+                bulkProcessor.add(toIndexRequest(document));
+            } catch (RuntimeException e) {
+                queuePermits.release();
+                throw e;
+            }
+            submittedDocs.increment();
+        }
+    }
+
+    /**
+     * 立即提交当前攒的批次
+     */
+    public void flush() {
+        bulkProcessor.flush();
+    }
+
+    private void acquire() {
+        try {
+            if (!queuePermits.tryAcquire(offerTimeoutSeconds, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("defend log bulk queue is full, depth: " + getQueueDepth());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for defend log bulk queue", e);
+        }
+    }
+
+    protected IndexRequest toIndexRequest(DefendLogDocument document) {
+        try {
+            return new IndexRequest(indexRouter.indexFor(document.getStatisDate()), indexType, document.getLogId())
+                    .source(entityMapper.mapToString(document), XContentType.JSON);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 待写入(排队中+写入中)的文档数
+     * @return
+     */
+    public int getQueueDepth() {
+        return queueCapacity - queuePermits.availablePermits();
+    }
+
+    public long getSubmittedDocs() {
+        return submittedDocs.sum();
+    }
+
+    public long getIndexedDocs() {
+        return indexedDocs.sum();
+    }
+
+    public long getFailedDocs() {
+        return failedDocs.sum();
+    }
+
+    /**
+     * 距上次采样以来的写入速率(条/秒)
+     * @return
+     */
+    public double sampleDocsPerSecond() {
+        long now = System.currentTimeMillis();
+        long indexed = indexedDocs.sum();
+        long elapsed = now - lastSampleTime.getAndSet(now);
+        long delta = indexed - lastSampleIndexed.getAndSet(indexed);
+        return elapsed <= 0 ? 0 : delta * 1000.0 / elapsed;
+    }
+
+    private class IngestListener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            log.debug("防护日志bulk请求[{}]开始,条数:{},待写入:{}", executionId, request.numberOfActions(), getQueueDepth());
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            List<DocWriteRequest<?>> failed = new ArrayList<>();
+            String reason = null;
+            if (response.hasFailures()) {
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed()) {
+                        failed.add(request.requests().get(item.getItemId()));
+                        reason = item.getFailureMessage();
+                        log.error("防护日志写入失败,id:{},status:{},message:{}", item.getId(), item.status(), item.getFailureMessage());
+                    }
+                }
+            }
+            completed(request, failed, reason);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            log.error("防护日志bulk请求[{}]失败,条数:{}", executionId, request.numberOfActions(), failure);
+            completed(request, request.requests(), String.valueOf(failure));
+        }
+
+        private void completed(BulkRequest request, List<DocWriteRequest<?>> failed, String reason) {
+            int indexed = request.numberOfActions() - failed.size();
+            indexedDocs.add(indexed);
+            failedDocs.add(failed.size());
+            if (indexedCounter != null) {
+                indexedCounter.increment(indexed);
+                failedCounter.increment(failed.size());
+            }
+            queuePermits.release(request.numberOfActions());
+            if (failureHandler != null && !failed.isEmpty()) {
+                try {
+                    failureHandler.onFailure(failed, reason);
+                } catch (RuntimeException e) {
+                    log.error("防护日志写入失败回调异常,条数:{}", failed.size(), e);
+                }
+            }
+        }
+    }
+}
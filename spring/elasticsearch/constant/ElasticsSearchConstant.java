@@ -6,4 +6,14 @@ package com.inspur.bss.waf.elasticsearch.constant;
  */
 public class ElasticsSearchConstant {
     public static int DEFAULT_TERM_SIZE = 1000 * 10;
+
+    /**
+     * composite聚合每页桶数
+     */
+    public static int DEFAULT_COMPOSITE_PAGE_SIZE = 1000;
+
+    /**
+     * composite聚合名称
+     */
+    public static final String COMPOSITE_AGGREGATION_NAME = "rollup";
 }
@@ -14,12 +14,13 @@ import java.util.Date;
 /**
  * @author hexinyu
  * @create 2020/03/16 11:55
+ * indexName为读别名,写入按statis_date路由到分区索引,见DefendLogIndexRouter
  */
 @Data
 @Builder
 @AllArgsConstructor
 @NoArgsConstructor
-@Document(indexName = "waf_defend_log", type = "defend_log")
+@Document(indexName = "waf_defend_log", type = "defend_log", createIndex = false)
 @Mapping(mappingPath = "/es/mapping/waf_defend_log.json")
 public class DefendLogDocument {
     @Id
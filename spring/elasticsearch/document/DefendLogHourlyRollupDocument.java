@@ -0,0 +1,44 @@
+package com.inspur.bss.waf.elasticsearch.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.elasticsearch.annotations.Document;
+import org.springframework.data.elasticsearch.annotations.Field;
+import org.springframework.data.elasticsearch.annotations.FieldType;
+
+import java.util.Date;
+
+/**
+ * 防护日志按小时预聚合的结果
+ * id由维度+分组字段+小时确定,重复聚合同一小时时覆盖写入
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(indexName = "waf_defend_log_rollup_hourly", type = "rollup")
+public class DefendLogHourlyRollupDocument {
+    @Id
+    private String id;
+    @Field(name="dimension", type = FieldType.Keyword)
+    private String dimension;
+    @Field(name="dimension_value", type = FieldType.Keyword)
+    private String dimensionValue;
+    @Field(name="user_id", type = FieldType.Keyword)
+    private String userId;
+    @Field(name="sub_domain_id", type = FieldType.Keyword)
+    private String subDomainId;
+    @Field(name="top_domain_id", type = FieldType.Keyword)
+    private String domainId;
+    @Field(name="attack_time", type = FieldType.Date)
+    private Date attackTime;
+    @Field(name="attack_count", type = FieldType.Long)
+    private Long attackCount;
+    @Field(name="ip_count", type = FieldType.Long)
+    private Long ipCount;
+    @Field(name="update_time", type = FieldType.Date)
+    private Date updateTime;
+}
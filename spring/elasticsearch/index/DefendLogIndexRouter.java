@@ -0,0 +1,133 @@
+package com.inspur.bss.waf.elasticsearch.index;
+
+import com.inspur.bss.waf.common.util.ZonedDateUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 防护日志按statis_date(GMT+8)分区路由
+ * 写入: waf_defend_log-yyyy.MM.dd(按天) 或 waf_defend_log-yyyy.MM(按月)
+ * 读取: 通过别名waf_defend_log,或只查询与时间范围重叠的分区
+ * 分区粒度由waf.es.index.partition(DAY/MONTH)配置,启动后不可修改;
+ * 切换粒度后旧粒度的索引仍可被按月通配符查询与过期删除识别
+ */
+@Component
+public class DefendLogIndexRouter {
+
+    /**
+     * 读别名,与原单索引同名,已有的查询不需要修改
+     */
+    public static final String ALIAS = "waf_defend_log";
+
+    public static final String INDEX_PREFIX = ALIAS + "-";
+
+    public static final String INDEX_PATTERN = INDEX_PREFIX + "*";
+
+    /**
+     * 按天分区时,查询范围超过该天数则改用按月的通配符,避免请求中索引名过多
+     */
+    private static final int MAX_EXPLICIT_DAY_INDICES = 31;
+
+    private final IndexPartition partition;
+
+    public enum IndexPartition {
+        DAY(DateTimeFormatter.ofPattern("yyyy.MM.dd")),
+        MONTH(DateTimeFormatter.ofPattern("yyyy.MM"));
+
+        private final DateTimeFormatter formatter;
+
+        IndexPartition(DateTimeFormatter formatter) {
+            this.formatter = formatter;
+        }
+    }
+
+    public DefendLogIndexRouter(@Value("${waf.es.index.partition:DAY}") IndexPartition partition) {
+        this.partition = partition;
+    }
+
+    public IndexPartition getPartition() {
+        return partition;
+    }
+
+    /**
+     * 取得文档写入的索引名
+     * @param statisDate
+     * @return
+     */
+    public String indexFor(Date statisDate) {
+        return INDEX_PREFIX + partition.formatter.format(ZonedDateUtils.date2ZonedDate(statisDate, ZonedDateUtils.ZONE_UTC8));
+    }
+
+    /**
+     * 取得与[startTime,endTime]重叠的索引
+     * 不存在的索引需要配合IndicesOptions.lenientExpandOpen()忽略
+     * @param startTime
+     * @param endTime
+     * @return
+     */
+    public String[] indicesFor(Date startTime, Date endTime) {
+        LocalDate startDay = ZonedDateUtils.date2ZonedDate(startTime, ZonedDateUtils.ZONE_UTC8).toLocalDate();
+        LocalDate endDay = ZonedDateUtils.date2ZonedDate(endTime, ZonedDateUtils.ZONE_UTC8).toLocalDate();
+        List<String> indices = new ArrayList<>();
+        if (startDay.isAfter(endDay)) {
+            return new String[0];
+        }
+        if (partition == IndexPartition.DAY && !startDay.plusDays(MAX_EXPLICIT_DAY_INDICES).isBefore(endDay)) {
+            for (LocalDate day = startDay; !day.isAfter(endDay); day = day.plusDays(1)) {
+                indices.add(INDEX_PREFIX + IndexPartition.DAY.formatter.format(day));
+            }
+        } else {
+            //同时匹配按月(yyyy.MM)与按天(yyyy.MM.dd)的索引
+            for (YearMonth month = YearMonth.from(startDay); !month.isAfter(YearMonth.from(endDay)); month = month.plusMonths(1)) {
+                indices.add(INDEX_PREFIX + IndexPartition.MONTH.formatter.format(month) + "*");
+            }
+        }
+        return indices.toArray(new String[0]);
+    }
+
+    /**
+     * 判断索引中的数据是否全部满足 statis_date <= date,可以整个索引删除
+     * 按天与按月两种索引名都能识别,与当前配置的分区粒度无关
+     * @param indexName
+     * @param date
+     * @return 不是分区索引时返回false
+     */
+    public static boolean isCoveredBy(String indexName, Date date) {
+        if (!indexName.startsWith(INDEX_PREFIX)) {
+            return false;
+        }
+        LocalDate lastDay = lastDayOf(indexName.substring(INDEX_PREFIX.length()));
+        if (lastDay == null) {
+            return false;
+        }
+        ZonedDateTime cutoff = ZonedDateUtils.date2ZonedDate(date, ZonedDateUtils.ZONE_UTC8);
+        return !lastDay.isAfter(cutoff.toLocalDate());
+    }
+
+    /**
+     * 分区索引中数据的最后一天
+     * @param suffix 索引名去掉前缀的部分
+     * @return 不是分区索引名时返回null
+     */
+    private static LocalDate lastDayOf(String suffix) {
+        try {
+            return LocalDate.parse(suffix, IndexPartition.DAY.formatter);
+        } catch (DateTimeParseException e) {
+            //不是按天的索引名,继续按月解析
+        }
+        try {
+            return YearMonth.parse(suffix, IndexPartition.MONTH.formatter).atEndOfMonth();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
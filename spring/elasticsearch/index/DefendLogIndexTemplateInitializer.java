@@ -0,0 +1,63 @@
+package com.inspur.bss.waf.elasticsearch.index;
+
+import com.inspur.bss.waf.elasticsearch.document.DefendLogDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.elasticsearch.annotations.Document;
+import org.springframework.data.elasticsearch.annotations.Mapping;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * 启动时注册防护日志分区索引模板: 新建的分区索引自动带上mapping与读别名
+ */
+@Slf4j
+@Component
+public class DefendLogIndexTemplateInitializer {
+
+    private static final String TEMPLATE_NAME = "waf_defend_log_template";
+
+    private final RestHighLevelClient client;
+
+    @Autowired
+    public DefendLogIndexTemplateInitializer(RestHighLevelClient client) {
+        this.client = client;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Document document = AnnotationUtils.findAnnotation(DefendLogDocument.class, Document.class);
+        Mapping mapping = AnnotationUtils.findAnnotation(DefendLogDocument.class, Mapping.class);
+        String mappingSource;
+        try (InputStream inputStream = new ClassPathResource(mapping.mappingPath()).getInputStream()) {
+            mappingSource = StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8);
+        }
+        PutIndexTemplateRequest request = new PutIndexTemplateRequest(TEMPLATE_NAME)
+                .patterns(Collections.singletonList(DefendLogIndexRouter.INDEX_PATTERN))
+                .mapping(document.type(), mappingSource, XContentType.JSON)
+                .alias(new Alias(DefendLogIndexRouter.ALIAS));
+        client.indices().putTemplate(request, RequestOptions.DEFAULT);
+
+        //别名不能与已有索引同名,旧的单索引需要先reindex到分区索引后删除
+        GetIndexRequest legacyIndex = new GetIndexRequest().indices(DefendLogIndexRouter.ALIAS);
+        if (client.indices().exists(legacyIndex, RequestOptions.DEFAULT)
+                && !client.indices().existsAlias(new GetAliasesRequest(DefendLogIndexRouter.ALIAS), RequestOptions.DEFAULT)) {
+            log.warn("存在未分区的防护日志索引{},新写入的分区索引无法挂载同名别名,请reindex到{}后删除", DefendLogIndexRouter.ALIAS, DefendLogIndexRouter.INDEX_PATTERN);
+        }
+    }
+}
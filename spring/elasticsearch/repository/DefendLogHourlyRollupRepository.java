@@ -0,0 +1,73 @@
+package com.inspur.bss.waf.dao.elasticsearch.defense;
+
+import com.inspur.bss.waf.common.util.ZonedDateUtils;
+import com.inspur.bss.waf.elasticsearch.document.DefendLogHourlyRollupDocument;
+import com.inspur.bss.waf.elasticsearch.rollup.RollupDimension;
+import com.inspur.bss.waf.task.defense.bean.AttackIpDataPo;
+import com.inspur.bss.waf.task.defense.bean.AttackTypeDataPo;
+import com.inspur.bss.waf.task.defense.bean.AttackUrlDataPo;
+import org.springframework.data.elasticsearch.repository.ElasticsearchRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.inspur.bss.waf.elasticsearch.utils.ESUtils.convertMap2Bean;
+
+/**
+ * 防护日志小时预聚合结果,看板直接读取预聚合文档,不再扫描原始日志
+ */
+@Repository
+public interface DefendLogHourlyRollupRepository extends ElasticsearchRepository<DefendLogHourlyRollupDocument, String> {
+
+    Stream<DefendLogHourlyRollupDocument> findByDimensionAndAttackTimeBetween(String dimension, Date startTime, Date endTime);
+
+    default List<AttackTypeDataPo> getAttackTypeFromRollup(Date startTime, Date endTime){
+        List<AttackTypeDataPo> attackTypeDataPos = convertMap2Bean(readRollupRows(RollupDimension.ATTACK_TYPE, startTime, endTime), AttackTypeDataPo.class);
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+        attackTypeDataPos.forEach(item -> item.setStatisTime(beginOfDay));
+        return attackTypeDataPos;
+    }
+
+    default List<AttackIpDataPo> getAttackIpFromRollup(Date startTime, Date endTime){
+        List<AttackIpDataPo> attackIpDataPos = convertMap2Bean(readRollupRows(RollupDimension.ATTACK_IP, startTime, endTime), AttackIpDataPo.class);
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+        attackIpDataPos.forEach(item -> item.setStatisTime(beginOfDay));
+        return attackIpDataPos;
+    }
+
+    default List<AttackUrlDataPo> getAttackUrlFromRollup(Date startTime, Date endTime){
+        List<AttackUrlDataPo> attackUrlDataPos = convertMap2Bean(readRollupRows(RollupDimension.ATTACK_URL, startTime, endTime), AttackUrlDataPo.class);
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+        attackUrlDataPos.forEach(item -> item.setStatistTime(beginOfDay));
+        return attackUrlDataPos;
+    }
+
+    /**
+     * 把预聚合文档还原为与原始聚合相同列名的行
+     * @param dimension
+     * @param startTime
+     * @param endTime
+     * @return
+     */
+    default List<Map<String, Object>> readRollupRows(RollupDimension dimension, Date startTime, Date endTime){
+        try (Stream<DefendLogHourlyRollupDocument> documents = findByDimensionAndAttackTimeBetween(dimension.name(), startTime, endTime)) {
+            return documents.map(document -> {
+                Map<String, Object> row = new HashMap<>(16);
+                row.put("id", document.getId());
+                row.put("userId", document.getUserId());
+                row.put("subDomainId", document.getSubDomainId());
+                row.put("domainId", document.getDomainId());
+                row.put(dimension.getValueColumn(), document.getDimensionValue());
+                row.put("attackTime", document.getAttackTime());
+                row.put("attackCount", document.getAttackCount());
+                row.put("ipCount", document.getIpCount());
+                return row;
+            }).collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.inspur.bss.waf.dao.elasticsearch.defense;
+
+import com.inspur.bss.waf.elasticsearch.document.DefendLogDocument;
+
+import java.util.List;
+
+/**
+ * 防护日志批量写入,作为{@link DefenderLogElasticsearchRepository}的自定义片段
+ */
+public interface DefenderLogBulkRepository {
+
+    /**
+     * 提交到批量写入队列,队列满时阻塞调用方
+     * @param documents
+     */
+    void bulkSaveDefenseLog(List<DefendLogDocument> documents);
+}
@@ -0,0 +1,25 @@
+package com.inspur.bss.waf.dao.elasticsearch.defense;
+
+import com.inspur.bss.waf.elasticsearch.bulk.DefendLogBulkIngester;
+import com.inspur.bss.waf.elasticsearch.document.DefendLogDocument;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.List;
+
+/**
+ * {@link DefenderLogBulkRepository}的实现,由spring data按Impl后缀自动装配到repository
+ */
+public class DefenderLogBulkRepositoryImpl implements DefenderLogBulkRepository {
+
+    private final DefendLogBulkIngester bulkIngester;
+
+    @Autowired
+    public DefenderLogBulkRepositoryImpl(DefendLogBulkIngester bulkIngester) {
+        this.bulkIngester = bulkIngester;
+    }
+
+    @Override
+    public void bulkSaveDefenseLog(List<DefendLogDocument> documents) {
+        bulkIngester.submit(documents);
+    }
+}
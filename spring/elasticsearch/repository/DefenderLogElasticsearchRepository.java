@@ -7,17 +7,28 @@ import com.inspur.bss.waf.dao.enums.RepositoryType;
 import com.inspur.bss.waf.elasticsearch.EmptyPage;
 import com.inspur.bss.waf.elasticsearch.constant.ElasticsSearchConstant;
 import com.inspur.bss.waf.elasticsearch.document.DefendLogDocument;
+import com.inspur.bss.waf.elasticsearch.utils.AggregationFlattener;
+import com.inspur.bss.waf.elasticsearch.utils.RollupSliceMerger;
 import com.inspur.bss.waf.manage.defense.bean.WafLogBean;
 import com.inspur.bss.waf.task.defense.bean.AttackIpDataPo;
 import com.inspur.bss.waf.task.defense.bean.AttackTypeDataPo;
 import com.inspur.bss.waf.task.defense.bean.AttackUrlDataPo;
 import com.inspur.bss.waf.task.defense.interfaces.DefenderLogRepository;
 import org.apache.groovy.util.Maps;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.SingleBucketAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.DateHistogramValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
 import org.elasticsearch.search.aggregations.pipeline.PipelineAggregatorBuilders;
 import org.springframework.data.elasticsearch.core.aggregation.AggregatedPage;
@@ -25,11 +36,24 @@ import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilde
 import org.springframework.data.elasticsearch.repository.ElasticsearchRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static com.inspur.bss.waf.elasticsearch.utils.ESUtils.convertMap2Bean;
+import static com.inspur.bss.waf.elasticsearch.utils.ESUtils.getCompositeResultBeans;
+import static com.inspur.bss.waf.elasticsearch.utils.ESUtils.getResultBeans;
 import static com.inspur.bss.waf.elasticsearch.utils.ESUtils.getResultMap;
 
 /**
@@ -38,18 +62,20 @@ import static com.inspur.bss.waf.elasticsearch.utils.ESUtils.getResultMap;
  */
 @Repository
 @RepositoryTypeIdentifier(RepositoryType.ES)
-public interface DefenderLogElasticsearchRepository extends ElasticsearchRepository<DefendLogDocument,String>, DefenderLogRepository {
-
-    void deleteAllByStatisDateLessThanEqual(Date date);
+public interface DefenderLogElasticsearchRepository extends ElasticsearchRepository<DefendLogDocument,String>, DefenderLogRepository, DefenderLogBulkRepository, DefenderLogIndexRepository, DefenderLogExportRepository {
 
+    /**
+     * 按分区整个删除索引,不再使用delete-by-query
+     * @param date
+     */
     @Override
     default void deleteDefenseLogBefore(Date date){
-        deleteAllByStatisDateLessThanEqual(date);
+        dropDefenseLogIndicesBefore(date);
     }
 
     @Override
     default void insertDefenseLog(List<WafLogBean> wafLogBeans, String topDomainId , String subDomainId, String userId){
-        saveAll(
+        bulkSaveDefenseLog(
                 readyDefenseLogDocument(wafLogBeans, topDomainId, subDomainId, userId)
         );
     }
@@ -76,22 +102,85 @@ public interface DefenderLogElasticsearchRepository extends ElasticsearchReposit
     }
 
 
-    default List<AttackTypeDataPo> getAttackType(Date startTime, Date endTime){
-        RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("statis_date")
+    default RangeQueryBuilder initStatisDateRangeQuery(Date startTime, Date endTime) {
+        return QueryBuilders.rangeQuery("statis_date")
                 .gte(startTime.getTime())
                 .lte(endTime.getTime());
+    }
 
-        NativeSearchQueryBuilder nativeSearchQueryBuilder = new NativeSearchQueryBuilder();
-        //构造builder
-        nativeSearchQueryBuilder.withQuery(rangeQuery)
+    /**
+     * 统计查询的公共部分: statis_date范围过滤,不返回文档,只查询与范围重叠的分区索引
+     * @param startTime
+     * @param endTime
+     * @return
+     */
+    default NativeSearchQueryBuilder initRollupQueryBuilder(Date startTime, Date endTime) {
+        return new NativeSearchQueryBuilder()
+                .withQuery(initStatisDateRangeQuery(startTime, endTime))
                 .withPageable(EmptyPage.INSTANCE)
-                .addAggregation(
+                .withIndices(defenseLogIndicesFor(startTime, endTime))
+                .withIndicesOptions(IndicesOptions.lenientExpandOpen());
+    }
+
+    /**
+     * 使用composite聚合分页执行统计,每页回调一次pageConsumer
+     * 与嵌套terms聚合相比不受DEFAULT_TERM_SIZE截断,单次响应大小由DEFAULT_COMPOSITE_PAGE_SIZE限制
+     * @param startTime
+     * @param endTime
+     * @param compositeBuilder 聚合名称必须为{@link ElasticsSearchConstant#COMPOSITE_AGGREGATION_NAME}
+     * @param clazz
+     * @param pageConsumer
+     * @param <T>
+     */
+    default <T> void compositeRollup(Date startTime, Date endTime, CompositeAggregationBuilder compositeBuilder, Class<T> clazz, Consumer<List<T>> pageConsumer){
+        Map<String, Object> afterKey = null;
+        while (true) {
+            compositeBuilder.aggregateAfter(afterKey);
+            NativeSearchQueryBuilder nativeSearchQueryBuilder = initRollupQueryBuilder(startTime, endTime)
+                    .addAggregation(compositeBuilder);
+            AggregatedPage<DefendLogDocument> aggregatedPage = (AggregatedPage<DefendLogDocument>) this.search(nativeSearchQueryBuilder.build());
+            CompositeAggregation compositeAggregation = (CompositeAggregation) aggregatedPage.getAggregation(ElasticsSearchConstant.COMPOSITE_AGGREGATION_NAME);
+            if (compositeAggregation == null || compositeAggregation.getBuckets().isEmpty()) {
+                return;
+            }
+            List<T> page = getCompositeResultBeans(compositeAggregation, clazz);
+            if (!page.isEmpty()) {
+                pageConsumer.accept(page);
+            }
+            afterKey = compositeAggregation.afterKey();
+            if (afterKey == null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 构造composite聚合, group by sources, 每个桶统计metrics
+     * @param sources
+     * @param metrics
+     * @return
+     */
+    default CompositeAggregationBuilder initCompositeAggregationBuilder(List<CompositeValuesSourceBuilder<?>> sources, AggregationBuilder... metrics) {
+        CompositeAggregationBuilder compositeBuilder = AggregationBuilders.composite(ElasticsSearchConstant.COMPOSITE_AGGREGATION_NAME, sources)
+                .size(ElasticsSearchConstant.DEFAULT_COMPOSITE_PAGE_SIZE);
+        //响应中date_histogram源的key按meta转换为Date
+        compositeBuilder.setMetaData(AggregationFlattener.dateHistogramSourcesMeta(sources));
+        for (AggregationBuilder metric : metrics) {
+            compositeBuilder.subAggregation(metric);
+        }
+        return compositeBuilder;
+    }
+
+    default List<AttackTypeDataPo> getAttackType(Date startTime, Date endTime){
+        NativeSearchQueryBuilder nativeSearchQueryBuilder = initRollupQueryBuilder(startTime, endTime);
+        //构造builder
+        nativeSearchQueryBuilder.addAggregation(
                         //groupBy user_id,top_domain_id,sub_domain_id, atk_type,DATE_FORMAT(log_time,'%Y-%m-%d %H:00:00')
                         initAttackTypeAggregationBuilder()
                 );
         AggregatedPage<DefendLogDocument> aggregatedPage = (AggregatedPage<DefendLogDocument>) this.search(nativeSearchQueryBuilder.build());
 
-        List<AttackTypeDataPo> attackTypeDataPos = convertMap2Bean(getResultMap(aggregatedPage), AttackTypeDataPo.class);
+        List<AttackTypeDataPo> attackTypeDataPos = getResultBeans(aggregatedPage, AttackTypeDataPo.class);
         //获取当日GMT+8的开始时间
         String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
         attackTypeDataPos.forEach( item -> {
@@ -118,21 +207,46 @@ public interface DefenderLogElasticsearchRepository extends ElasticsearchReposit
         );
     }
 
-    default List<AttackIpDataPo> getAttackIp(Date startTime, Date endTime){
-        RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("statis_date")
-                .gte(startTime.getTime())
-                .lte(endTime.getTime());
+    /**
+     * getAttackType的composite分页版本
+     * @param startTime
+     * @param endTime
+     * @param pageConsumer
+     */
+    default void getAttackType(Date startTime, Date endTime, Consumer<List<AttackTypeDataPo>> pageConsumer){
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+        compositeRollup(startTime, endTime, initAttackTypeCompositeBuilder(), AttackTypeDataPo.class, page -> {
+            page.forEach( item -> {
+                item.setStatisTime(beginOfDay);
+                item.setId(String.valueOf(IdWorker.getNextId()));
+            });
+            pageConsumer.accept(page);
+        });
+    }
+
+    default CompositeAggregationBuilder initAttackTypeCompositeBuilder() {
+        //groupBy user_id,sub_domain_id,atk_type,top_domain_id,DATE_FORMAT(log_time,'%Y-%m-%d %H:00:00')
+        return initCompositeAggregationBuilder(
+                Arrays.asList(
+                        new TermsValuesSourceBuilder("userId").field("user_id.keyword"),
+                        new TermsValuesSourceBuilder("subDomainId").field("sub_domain_id.keyword"),
+                        new TermsValuesSourceBuilder("attackType").field("atk_type.keyword"),
+                        new TermsValuesSourceBuilder("domainId").field("top_domain_id.keyword"),
+                        new DateHistogramValuesSourceBuilder("attackTime").field("log_time").dateHistogramInterval(DateHistogramInterval.HOUR)
+                ),
+                AggregationBuilders.count("attackCount").field("atk_type.keyword")
+        );
+    }
 
-        NativeSearchQueryBuilder nativeSearchQueryBuilder = new NativeSearchQueryBuilder();
+    default List<AttackIpDataPo> getAttackIp(Date startTime, Date endTime){
+        NativeSearchQueryBuilder nativeSearchQueryBuilder = initRollupQueryBuilder(startTime, endTime);
         //构造builder
-        nativeSearchQueryBuilder.withQuery(rangeQuery)
-                .withPageable(EmptyPage.INSTANCE)
-                .addAggregation(
+        nativeSearchQueryBuilder.addAggregation(
                         //groupBy user_id,top_domain_id,sub_domain_id, atk_type,DATE_FORMAT(log_time,'%Y-%m-%d %H:00:00')
                         initAttackIpAggregationBuilder()
                 );
         AggregatedPage<DefendLogDocument> aggregatedPage = (AggregatedPage<DefendLogDocument>) this.search(nativeSearchQueryBuilder.build());
-        List<AttackIpDataPo> attackIpDataPos = convertMap2Bean(getResultMap(aggregatedPage), AttackIpDataPo.class);
+        List<AttackIpDataPo> attackIpDataPos = getResultBeans(aggregatedPage, AttackIpDataPo.class);
         //获取当日GMT+8的开始时间
         String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
         attackIpDataPos.forEach( item -> {
@@ -159,21 +273,45 @@ public interface DefenderLogElasticsearchRepository extends ElasticsearchReposit
         );
     }
 
-    default List<AttackUrlDataPo> getAttackUrl(Date startTime, Date endTime){
-        RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("statis_date")
-                .gte(startTime.getTime())
-                .lte(endTime.getTime());
+    /**
+     * getAttackIp的composite分页版本
+     * @param startTime
+     * @param endTime
+     * @param pageConsumer
+     */
+    default void getAttackIp(Date startTime, Date endTime, Consumer<List<AttackIpDataPo>> pageConsumer){
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+        compositeRollup(startTime, endTime, initAttackIpCompositeBuilder(), AttackIpDataPo.class, page -> {
+            page.forEach( item -> {
+                item.setStatisTime(beginOfDay);
+                item.setId(String.valueOf(IdWorker.getNextId()));
+            });
+            pageConsumer.accept(page);
+        });
+    }
+
+    default CompositeAggregationBuilder initAttackIpCompositeBuilder() {
+        return initCompositeAggregationBuilder(
+                Arrays.asList(
+                        new TermsValuesSourceBuilder("userId").field("user_id.keyword"),
+                        new TermsValuesSourceBuilder("subDomainId").field("sub_domain_id.keyword"),
+                        new TermsValuesSourceBuilder("attackIp").field("atk_ip.keyword"),
+                        new TermsValuesSourceBuilder("domainId").field("top_domain_id.keyword"),
+                        new DateHistogramValuesSourceBuilder("attackTime").field("log_time").dateHistogramInterval(DateHistogramInterval.HOUR)
+                ),
+                AggregationBuilders.count("attackCount").field("atk_ip.keyword")
+        );
+    }
 
-        NativeSearchQueryBuilder nativeSearchQueryBuilder = new NativeSearchQueryBuilder();
+    default List<AttackUrlDataPo> getAttackUrl(Date startTime, Date endTime){
+        NativeSearchQueryBuilder nativeSearchQueryBuilder = initRollupQueryBuilder(startTime, endTime);
         //构造builder
-        nativeSearchQueryBuilder.withQuery(rangeQuery)
-                .withPageable(EmptyPage.INSTANCE)
-                .addAggregation(
+        nativeSearchQueryBuilder.addAggregation(
                         //groupBy user_id,top_domain_id,sub_domain_id, atk_type,DATE_FORMAT(log_time,'%Y-%m-%d %H:00:00')
                         initAttackUrlAggregationBuilder()
                 );
         AggregatedPage<DefendLogDocument> aggregatedPage = (AggregatedPage<DefendLogDocument>) this.search(nativeSearchQueryBuilder.build());
-        List<AttackUrlDataPo> attackUrlDataPos = convertMap2Bean(getResultMap(aggregatedPage), AttackUrlDataPo.class);
+        List<AttackUrlDataPo> attackUrlDataPos = getResultBeans(aggregatedPage, AttackUrlDataPo.class);
         //获取当日GMT+8的开始时间
         String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
         attackUrlDataPos.forEach( item -> {
@@ -200,4 +338,255 @@ public interface DefenderLogElasticsearchRepository extends ElasticsearchReposit
                 )
         );
     }
+
+    /**
+     * getAttackUrl的composite分页版本
+     * @param startTime
+     * @param endTime
+     * @param pageConsumer
+     */
+    default void getAttackUrl(Date startTime, Date endTime, Consumer<List<AttackUrlDataPo>> pageConsumer){
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+        compositeRollup(startTime, endTime, initAttackUrlCompositeBuilder(), AttackUrlDataPo.class, page -> {
+            page.forEach( item -> {
+                item.setStatistTime(beginOfDay);
+                item.setId(String.valueOf(IdWorker.getNextId()));
+            });
+            pageConsumer.accept(page);
+        });
+    }
+
+    default CompositeAggregationBuilder initAttackUrlCompositeBuilder() {
+        return initCompositeAggregationBuilder(
+                Arrays.asList(
+                        new TermsValuesSourceBuilder("userId").field("user_id.keyword"),
+                        new TermsValuesSourceBuilder("subDomainId").field("sub_domain_id.keyword"),
+                        new TermsValuesSourceBuilder("targetUrl").field("target_url.keyword"),
+                        new TermsValuesSourceBuilder("domainId").field("top_domain_id.keyword"),
+                        new DateHistogramValuesSourceBuilder("attackTime").field("log_time").dateHistogramInterval(DateHistogramInterval.HOUR)
+                ),
+                AggregationBuilders.count("attackCount").field("target_url.keyword"),
+                AggregationBuilders.cardinality("ipCount").field("atk_ip.keyword")
+        );
+    }
+
+    /**
+     * 一次查询同时统计攻击类型/攻击IP/攻击URL,只扫描一次索引
+     * 三棵聚合树的根名称相同,分别包在match_all的filter聚合下区分
+     * @param startTime
+     * @param endTime
+     * @return
+     */
+    default DefenseRollupResult getDefenseRollup(Date startTime, Date endTime){
+        DefenseRollupResult result = new DefenseRollupResult();
+        long start = System.currentTimeMillis();
+        NativeSearchQueryBuilder nativeSearchQueryBuilder = initRollupQueryBuilder(startTime, endTime);
+        nativeSearchQueryBuilder.addAggregation(AggregationBuilders.filter(DefenseRollupResult.DIMENSION_ATTACK_TYPE, QueryBuilders.matchAllQuery())
+                        .subAggregation(initAttackTypeAggregationBuilder()))
+                .addAggregation(AggregationBuilders.filter(DefenseRollupResult.DIMENSION_ATTACK_IP, QueryBuilders.matchAllQuery())
+                        .subAggregation(initAttackIpAggregationBuilder()))
+                .addAggregation(AggregationBuilders.filter(DefenseRollupResult.DIMENSION_ATTACK_URL, QueryBuilders.matchAllQuery())
+                        .subAggregation(initAttackUrlAggregationBuilder()));
+        AggregatedPage<DefendLogDocument> aggregatedPage = (AggregatedPage<DefendLogDocument>) this.search(nativeSearchQueryBuilder.build());
+        result.getCostMillis().put(DefenseRollupResult.DIMENSION_SEARCH, System.currentTimeMillis() - start);
+
+        //获取当日GMT+8的开始时间
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+
+        start = System.currentTimeMillis();
+        List<AttackTypeDataPo> attackTypeDataPos = getResultBeans(getSubAggregations(aggregatedPage, DefenseRollupResult.DIMENSION_ATTACK_TYPE), AttackTypeDataPo.class);
+        attackTypeDataPos.forEach( item -> {
+            item.setStatisTime(beginOfDay);
+            item.setId(String.valueOf(IdWorker.getNextId()));
+        });
+        result.setAttackTypes(attackTypeDataPos);
+        result.getCostMillis().put(DefenseRollupResult.DIMENSION_ATTACK_TYPE, System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        List<AttackIpDataPo> attackIpDataPos = getResultBeans(getSubAggregations(aggregatedPage, DefenseRollupResult.DIMENSION_ATTACK_IP), AttackIpDataPo.class);
+        attackIpDataPos.forEach( item -> {
+            item.setStatisTime(beginOfDay);
+            item.setId(String.valueOf(IdWorker.getNextId()));
+        });
+        result.setAttackIps(attackIpDataPos);
+        result.getCostMillis().put(DefenseRollupResult.DIMENSION_ATTACK_IP, System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        List<AttackUrlDataPo> attackUrlDataPos = getResultBeans(getSubAggregations(aggregatedPage, DefenseRollupResult.DIMENSION_ATTACK_URL), AttackUrlDataPo.class);
+        attackUrlDataPos.forEach( item -> {
+            item.setStatistTime(beginOfDay);
+            item.setId(String.valueOf(IdWorker.getNextId()));
+        });
+        result.setAttackUrls(attackUrlDataPos);
+        result.getCostMillis().put(DefenseRollupResult.DIMENSION_ATTACK_URL, System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * 并行执行攻击类型/攻击IP/攻击URL三个统计查询
+     * @param startTime
+     * @param endTime
+     * @param executor 执行查询的线程池
+     * @return
+     */
+    default DefenseRollupResult getDefenseRollup(Date startTime, Date endTime, Executor executor){
+        DefenseRollupResult result = new DefenseRollupResult();
+        Map<String, Long> costMillis = new ConcurrentHashMap<>();
+        CompletableFuture<List<AttackTypeDataPo>> attackTypeFuture = CompletableFuture.supplyAsync(
+                () -> timed(costMillis, DefenseRollupResult.DIMENSION_ATTACK_TYPE, () -> getAttackType(startTime, endTime)), executor);
+        CompletableFuture<List<AttackIpDataPo>> attackIpFuture = CompletableFuture.supplyAsync(
+                () -> timed(costMillis, DefenseRollupResult.DIMENSION_ATTACK_IP, () -> getAttackIp(startTime, endTime)), executor);
+        CompletableFuture<List<AttackUrlDataPo>> attackUrlFuture = CompletableFuture.supplyAsync(
+                () -> timed(costMillis, DefenseRollupResult.DIMENSION_ATTACK_URL, () -> getAttackUrl(startTime, endTime)), executor);
+        CompletableFuture.allOf(attackTypeFuture, attackIpFuture, attackUrlFuture).join();
+
+        result.setAttackTypes(attackTypeFuture.join());
+        result.setAttackIps(attackIpFuture.join());
+        result.setAttackUrls(attackUrlFuture.join());
+        result.getCostMillis().put(DefenseRollupResult.DIMENSION_ATTACK_TYPE, costMillis.get(DefenseRollupResult.DIMENSION_ATTACK_TYPE));
+        result.getCostMillis().put(DefenseRollupResult.DIMENSION_ATTACK_IP, costMillis.get(DefenseRollupResult.DIMENSION_ATTACK_IP));
+        result.getCostMillis().put(DefenseRollupResult.DIMENSION_ATTACK_URL, costMillis.get(DefenseRollupResult.DIMENSION_ATTACK_URL));
+        return result;
+    }
+
+    default <T> T timed(Map<String, Long> costMillis, String dimension, Supplier<T> supplier){
+        long start = System.currentTimeMillis();
+        try {
+            return supplier.get();
+        } finally {
+            costMillis.put(dimension, System.currentTimeMillis() - start);
+        }
+    }
+
+    default List<Aggregation> getSubAggregations(AggregatedPage<?> aggregatedPage, String aggregationName){
+        SingleBucketAggregation aggregation = (SingleBucketAggregation) aggregatedPage.getAggregation(aggregationName);
+        return aggregation == null ? Collections.emptyList() : aggregation.getAggregations().asList();
+    }
+
+    /**
+     * 按log_time把统计拆分为多个时间片并发查询,合并各分片的桶
+     * 分片边界按小时对齐,与attackTime的小时粒度一致,同一个桶只会出现在一个分片中,ipCount的基数因此不会被拆分
+     * 第一个分片不设下界,最后一个分片不设上界,保证statis_date范围内的数据全部被覆盖
+     * @param startTime
+     * @param endTime
+     * @param sliceMinutes 分片长度(分钟),向上取整到小时
+     * @param parallelism 最大并发查询数
+     * @param executor 执行查询的线程池
+     * @param aggregationSupplier 每个分片使用的聚合
+     * @param merger
+     * @return
+     */
+    default List<Map<String, Object>> fanOutRollup(Date startTime, Date endTime, int sliceMinutes, int parallelism, Executor executor,
+                                                   Supplier<AbstractAggregationBuilder<?>> aggregationSupplier, RollupSliceMerger merger){
+        long hourMillis = TimeUnit.HOURS.toMillis(1);
+        int alignedMinutes = Math.max(1, (sliceMinutes + 59) / 60) * 60;
+        Date alignedStart = new Date(startTime.getTime() - Math.floorMod(startTime.getTime(), hourMillis));
+        List<Date> boundaries = ZonedDateUtils.splitDateIntervalByMinute(alignedStart, endTime, alignedMinutes);
+
+        Semaphore permits = new Semaphore(Math.max(1, parallelism));
+        List<CompletableFuture<List<Map<String, Object>>>> futures = new ArrayList<>(boundaries.size());
+        for (int i = 0; i < boundaries.size(); i++) {
+            Date logTimeFrom = i == 0 ? null : boundaries.get(i);
+            Date logTimeTo = i + 1 < boundaries.size() ? boundaries.get(i + 1) : null;
+            permits.acquireUninterruptibly();
+            futures.add(
+                    CompletableFuture.supplyAsync(
+                            () -> searchRollupSlice(startTime, endTime, logTimeFrom, logTimeTo, aggregationSupplier.get()), executor)
+                            .whenComplete((rows, e) -> permits.release())
+            );
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        futures.forEach(future -> merger.merge(future.join()));
+        return merger.getResult();
+    }
+
+    /**
+     * 查询一个log_time分片 [logTimeFrom, logTimeTo)
+     * @param startTime
+     * @param endTime
+     * @param logTimeFrom 为null表示不设下界
+     * @param logTimeTo 为null表示不设上界
+     * @param aggregationBuilder
+     * @return
+     */
+    default List<Map<String, Object>> searchRollupSlice(Date startTime, Date endTime, Date logTimeFrom, Date logTimeTo, AbstractAggregationBuilder<?> aggregationBuilder){
+        RangeQueryBuilder logTimeRange = QueryBuilders.rangeQuery("log_time");
+        if (logTimeFrom != null) {
+            logTimeRange.gte(logTimeFrom.getTime());
+        }
+        if (logTimeTo != null) {
+            logTimeRange.lt(logTimeTo.getTime());
+        }
+        NativeSearchQueryBuilder nativeSearchQueryBuilder = initRollupQueryBuilder(startTime, endTime)
+                .withQuery(QueryBuilders.boolQuery().filter(initStatisDateRangeQuery(startTime, endTime)).filter(logTimeRange))
+                .addAggregation(aggregationBuilder);
+        AggregatedPage<DefendLogDocument> aggregatedPage = (AggregatedPage<DefendLogDocument>) this.search(nativeSearchQueryBuilder.build());
+        return getResultMap(aggregatedPage);
+    }
+
+    /**
+     * getAttackType的时间分片并发版本
+     * @param startTime
+     * @param endTime
+     * @param sliceMinutes
+     * @param parallelism
+     * @param executor
+     * @return
+     */
+    default List<AttackTypeDataPo> getAttackType(Date startTime, Date endTime, int sliceMinutes, int parallelism, Executor executor){
+        List<Map<String, Object>> rows = fanOutRollup(startTime, endTime, sliceMinutes, parallelism, executor,
+                this::initAttackTypeAggregationBuilder,
+                new RollupSliceMerger(Collections.singleton("attackCount"), Collections.emptySet()));
+        List<AttackTypeDataPo> attackTypeDataPos = convertMap2Bean(rows, AttackTypeDataPo.class);
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+        attackTypeDataPos.forEach( item -> {
+            item.setStatisTime(beginOfDay);
+            item.setId(String.valueOf(IdWorker.getNextId()));
+        });
+        return attackTypeDataPos;
+    }
+
+    /**
+     * getAttackIp的时间分片并发版本
+     * @param startTime
+     * @param endTime
+     * @param sliceMinutes
+     * @param parallelism
+     * @param executor
+     * @return
+     */
+    default List<AttackIpDataPo> getAttackIp(Date startTime, Date endTime, int sliceMinutes, int parallelism, Executor executor){
+        List<Map<String, Object>> rows = fanOutRollup(startTime, endTime, sliceMinutes, parallelism, executor,
+                this::initAttackIpAggregationBuilder,
+                new RollupSliceMerger(Collections.singleton("attackCount"), Collections.emptySet()));
+        List<AttackIpDataPo> attackIpDataPos = convertMap2Bean(rows, AttackIpDataPo.class);
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+        attackIpDataPos.forEach( item -> {
+            item.setStatisTime(beginOfDay);
+            item.setId(String.valueOf(IdWorker.getNextId()));
+        });
+        return attackIpDataPos;
+    }
+
+    /**
+     * getAttackUrl的时间分片并发版本
+     * @param startTime
+     * @param endTime
+     * @param sliceMinutes
+     * @param parallelism
+     * @param executor
+     * @return
+     */
+    default List<AttackUrlDataPo> getAttackUrl(Date startTime, Date endTime, int sliceMinutes, int parallelism, Executor executor){
+        List<Map<String, Object>> rows = fanOutRollup(startTime, endTime, sliceMinutes, parallelism, executor,
+                this::initAttackUrlAggregationBuilder,
+                new RollupSliceMerger(Collections.singleton("attackCount"), Collections.singleton("ipCount")));
+        List<AttackUrlDataPo> attackUrlDataPos = convertMap2Bean(rows, AttackUrlDataPo.class);
+        String beginOfDay = ZonedDateUtils.format2DateTime(ZonedDateUtils.getBeginOfDayZoned(ZonedDateUtils.now(),ZonedDateUtils.ZONE_UTC8));
+        attackUrlDataPos.forEach( item -> {
+            item.setStatistTime(beginOfDay);
+            item.setId(String.valueOf(IdWorker.getNextId()));
+        });
+        return attackUrlDataPos;
+    }
 }
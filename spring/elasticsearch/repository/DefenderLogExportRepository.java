@@ -0,0 +1,23 @@
+package com.inspur.bss.waf.dao.elasticsearch.defense;
+
+import com.inspur.bss.waf.elasticsearch.document.DefendLogDocument;
+
+import java.util.Date;
+import java.util.stream.Stream;
+
+/**
+ * 防护日志原始数据导出,作为{@link DefenderLogElasticsearchRepository}的自定义片段
+ */
+public interface DefenderLogExportRepository {
+
+    /**
+     * 按 log_time,log_id 顺序以search_after方式逐页读取 statis_date 在[startTime,endTime]内的原始日志
+     * 返回的Stream是惰性的,同一时刻只在内存中保留一页,使用完需要关闭
+     * @param startTime
+     * @param endTime
+     * @param pageSize 每页条数
+     * @param includeFields 只返回的字段(ES字段名,如 atk_ip),为空时返回全部字段
+     * @return
+     */
+    Stream<DefendLogDocument> exportDefenseLog(Date startTime, Date endTime, int pageSize, String... includeFields);
+}
@@ -0,0 +1,128 @@
+package com.inspur.bss.waf.dao.elasticsearch.defense;
+
+import com.inspur.bss.waf.elasticsearch.document.DefendLogDocument;
+import com.inspur.bss.waf.elasticsearch.index.DefendLogIndexRouter;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.core.EntityMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * {@link DefenderLogExportRepository}的实现
+ * 使用search_after代替from+size,不受index.max_result_window限制,也不需要维护scroll上下文
+ */
+public class DefenderLogExportRepositoryImpl implements DefenderLogExportRepository {
+
+    private static final String SORT_FIELD = "log_time";
+
+    /**
+     * log_time相同时用log_id保证顺序唯一,否则翻页时会漏数据或重复
+     */
+    private static final String TIE_BREAKER_FIELD = "log_id.keyword";
+
+    private final RestHighLevelClient client;
+    private final EntityMapper entityMapper;
+    private final DefendLogIndexRouter indexRouter;
+
+    @Autowired
+    public DefenderLogExportRepositoryImpl(RestHighLevelClient client, EntityMapper entityMapper, DefendLogIndexRouter indexRouter) {
+        this.client = client;
+        this.entityMapper = entityMapper;
+        this.indexRouter = indexRouter;
+    }
+
+    @Override
+    public Stream<DefendLogDocument> exportDefenseLog(Date startTime, Date endTime, int pageSize, String... includeFields) {
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder()
+                .query(QueryBuilders.rangeQuery("statis_date").gte(startTime.getTime()).lte(endTime.getTime()))
+                .size(pageSize)
+                .sort(SORT_FIELD, SortOrder.ASC)
+                .sort(TIE_BREAKER_FIELD, SortOrder.ASC)
+                .trackTotalHits(false);
+        if (includeFields != null && includeFields.length > 0) {
+            sourceBuilder.fetchSource(new FetchSourceContext(true, includeFields, null));
+        }
+        SearchRequest searchRequest = new SearchRequest(indexRouter.indicesFor(startTime, endTime))
+                .indicesOptions(IndicesOptions.lenientExpandOpen())
+                .source(sourceBuilder);
+        return StreamSupport.stream(new SearchAfterSpliterator(searchRequest, pageSize), false);
+    }
+
+    private DefendLogDocument toDocument(SearchHit hit) {
+        try {
+            DefendLogDocument document = entityMapper.mapToObject(hit.getSourceAsString(), DefendLogDocument.class);
+            if (document.getLogId() == null) {
+                document.setLogId(hit.getId());
+            }
+            return document;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private class SearchAfterSpliterator extends Spliterators.AbstractSpliterator<DefendLogDocument> {
+
+        private final SearchRequest searchRequest;
+        private final int pageSize;
+        private Iterator<SearchHit> page = Collections.emptyIterator();
+        private Object[] searchAfter;
+        private boolean exhausted;
+
+        private SearchAfterSpliterator(SearchRequest searchRequest, int pageSize) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.searchRequest = searchRequest;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super DefendLogDocument> action) {
+            if (!page.hasNext()) {
+                if (exhausted || !fetchNextPage()) {
+                    return false;
+                }
+            }
+            action.accept(toDocument(page.next()));
+            return true;
+        }
+
+        private boolean fetchNextPage() {
+            if (searchAfter != null) {
+                searchRequest.source().searchAfter(searchAfter);
+            }
+            SearchHit[] hits;
+            try {
+                hits = client.search(searchRequest, RequestOptions.DEFAULT).getHits().getHits();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (hits.length < pageSize) {
+                exhausted = true;
+            }
+            if (hits.length == 0) {
+                return false;
+            }
+            searchAfter = hits[hits.length - 1].getSortValues();
+            page = Arrays.asList(hits).iterator();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.inspur.bss.waf.dao.elasticsearch.defense;
+
+import java.util.Date;
+
+/**
+ * 防护日志分区索引管理,作为{@link DefenderLogElasticsearchRepository}的自定义片段
+ */
+public interface DefenderLogIndexRepository {
+
+    /**
+     * 删除数据全部满足 statis_date <= date 的分区索引
+     * @param date
+     * @return 删除的索引数
+     */
+    int dropDefenseLogIndicesBefore(Date date);
+
+    /**
+     * 取得与[startTime,endTime]重叠的分区索引,按配置的分区粒度路由
+     * @param startTime
+     * @param endTime
+     * @return
+     */
+    String[] defenseLogIndicesFor(Date startTime, Date endTime);
+}
@@ -0,0 +1,56 @@
+package com.inspur.bss.waf.dao.elasticsearch.defense;
+
+import com.inspur.bss.waf.elasticsearch.index.DefendLogIndexRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * {@link DefenderLogIndexRepository}的实现
+ */
+@Slf4j
+public class DefenderLogIndexRepositoryImpl implements DefenderLogIndexRepository {
+
+    private final RestHighLevelClient client;
+    private final DefendLogIndexRouter indexRouter;
+
+    @Autowired
+    public DefenderLogIndexRepositoryImpl(RestHighLevelClient client, DefendLogIndexRouter indexRouter) {
+        this.client = client;
+        this.indexRouter = indexRouter;
+    }
+
+    @Override
+    public int dropDefenseLogIndicesBefore(Date date) {
+        try {
+            GetIndexRequest getIndexRequest = new GetIndexRequest()
+                    .indices(DefendLogIndexRouter.INDEX_PATTERN)
+                    .indicesOptions(IndicesOptions.lenientExpandOpen());
+            String[] expiredIndices = Arrays.stream(client.indices().get(getIndexRequest, RequestOptions.DEFAULT).getIndices())
+                    .filter(index -> DefendLogIndexRouter.isCoveredBy(index, date))
+                    .toArray(String[]::new);
+            if (expiredIndices.length == 0) {
+                return 0;
+            }
+            log.info("删除过期防护日志索引:{}", Arrays.toString(expiredIndices));
+            client.indices().delete(new DeleteIndexRequest(expiredIndices), RequestOptions.DEFAULT);
+            return expiredIndices.length;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String[] defenseLogIndicesFor(Date startTime, Date endTime) {
+        return indexRouter.indicesFor(startTime, endTime);
+    }
+}
@@ -0,0 +1,34 @@
+package com.inspur.bss.waf.dao.elasticsearch.defense;
+
+import com.inspur.bss.waf.task.defense.bean.AttackIpDataPo;
+import com.inspur.bss.waf.task.defense.bean.AttackTypeDataPo;
+import com.inspur.bss.waf.task.defense.bean.AttackUrlDataPo;
+import lombok.Data;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 攻击类型/攻击IP/攻击URL 三个维度的统计结果
+ */
+@Data
+public class DefenseRollupResult {
+
+    public static final String DIMENSION_SEARCH = "search";
+    public static final String DIMENSION_ATTACK_TYPE = "attackType";
+    public static final String DIMENSION_ATTACK_IP = "attackIp";
+    public static final String DIMENSION_ATTACK_URL = "attackUrl";
+
+    private List<AttackTypeDataPo> attackTypes = Collections.emptyList();
+
+    private List<AttackIpDataPo> attackIps = Collections.emptyList();
+
+    private List<AttackUrlDataPo> attackUrls = Collections.emptyList();
+
+    /**
+     * 各维度耗时(毫秒),合并查询时search为ES查询耗时,各维度为结果转换耗时
+     */
+    private Map<String, Long> costMillis = new LinkedHashMap<>();
+}
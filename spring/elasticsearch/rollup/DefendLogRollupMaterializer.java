@@ -0,0 +1,127 @@
+package com.inspur.bss.waf.elasticsearch.rollup;
+
+import com.inspur.bss.waf.dao.elasticsearch.defense.DefendLogHourlyRollupRepository;
+import com.inspur.bss.waf.dao.elasticsearch.defense.DefenderLogElasticsearchRepository;
+import com.inspur.bss.waf.elasticsearch.document.DefendLogHourlyRollupDocument;
+import com.inspur.bss.waf.redis.RedisHelper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 防护日志小时预聚合增量物化
+ * 每个维度在redis中记录水位线(已物化的最后一个完整小时的结束时间),每次只聚合水位线之后已结束的小时,
+ * 结果按确定的id覆盖写入预聚合索引;为兼容迟到的日志,每次会重新聚合水位线之前lateHours个小时
+ * 多节点部署时调用方需要用分布式锁保证同一维度只有一个节点在物化
+ */
+@Slf4j
+@Component
+public class DefendLogRollupMaterializer {
+
+    private static final String WATERMARK_KEY_PREFIX = "waf:defend-log:rollup:watermark:";
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * statis_date按天,log_time与statis_date可能跨天,查询分区索引时前后各放宽一天
+     */
+    private static final long STATIS_DATE_SLACK_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final DefenderLogElasticsearchRepository defenderLogRepository;
+    private final DefendLogHourlyRollupRepository rollupRepository;
+    private final RedisHelper redisHelper;
+
+    @Value("${waf.es.rollup.late-hours:1}")
+    private int lateHours;
+
+    @Value("${waf.es.rollup.initial-lookback-hours:24}")
+    private int initialLookbackHours;
+
+    @Autowired
+    public DefendLogRollupMaterializer(DefenderLogElasticsearchRepository defenderLogRepository,
+                                       DefendLogHourlyRollupRepository rollupRepository,
+                                       RedisHelper redisHelper) {
+        this.defenderLogRepository = defenderLogRepository;
+        this.rollupRepository = rollupRepository;
+        this.redisHelper = redisHelper;
+    }
+
+    /**
+     * 物化所有维度
+     */
+    public void materializeAll() {
+        for (RollupDimension dimension : RollupDimension.values()) {
+            materialize(dimension);
+        }
+    }
+
+    /**
+     * 物化一个维度水位线之后已结束的小时
+     * @param dimension
+     * @return 写入的预聚合文档数
+     */
+    public int materialize(RollupDimension dimension) {
+        long now = System.currentTimeMillis();
+        Date closedHour = new Date(now - now % HOUR_MILLIS);
+        String watermarkKey = WATERMARK_KEY_PREFIX + dimension.name();
+        String watermark = redisHelper.getForValue(watermarkKey);
+        Date from = watermark == null
+                ? new Date(closedHour.getTime() - initialLookbackHours * HOUR_MILLIS)
+                : new Date(Long.parseLong(watermark) - lateHours * HOUR_MILLIS);
+        if (!from.before(closedHour)) {
+            return 0;
+        }
+
+        List<Map<String, Object>> rows = defenderLogRepository.searchRollupSlice(
+                new Date(from.getTime() - STATIS_DATE_SLACK_MILLIS),
+                new Date(closedHour.getTime() + STATIS_DATE_SLACK_MILLIS),
+                from, closedHour,
+                dimension.initAggregationBuilder(defenderLogRepository));
+        Date updateTime = new Date(now);
+        List<DefendLogHourlyRollupDocument> documents = rows.stream()
+                .map(row -> toDocument(dimension, row, updateTime))
+                .collect(Collectors.toList());
+        if (!documents.isEmpty()) {
+            rollupRepository.saveAll(documents);
+        }
+        redisHelper.setForValue(watermarkKey, String.valueOf(closedHour.getTime()));
+        log.info("防护日志{}维度预聚合完成,区间[{},{}),文档数:{}", dimension, from, closedHour, documents.size());
+        return documents.size();
+    }
+
+    private DefendLogHourlyRollupDocument toDocument(RollupDimension dimension, Map<String, Object> row, Date updateTime) {
+        String userId = (String) row.get("userId");
+        String subDomainId = (String) row.get("subDomainId");
+        String domainId = (String) row.get("domainId");
+        String dimensionValue = (String) row.get(dimension.getValueColumn());
+        Date attackTime = (Date) row.get("attackTime");
+        String id = DigestUtils.md5DigestAsHex(String.join("\u0001",
+                dimension.name(), userId, subDomainId, domainId, dimensionValue, String.valueOf(attackTime.getTime()))
+                .getBytes(StandardCharsets.UTF_8));
+        return DefendLogHourlyRollupDocument.builder()
+                .id(id)
+                .dimension(dimension.name())
+                .dimensionValue(dimensionValue)
+                .userId(userId)
+                .subDomainId(subDomainId)
+                .domainId(domainId)
+                .attackTime(attackTime)
+                .attackCount(toLong(row.get("attackCount")))
+                .ipCount(toLong(row.get("ipCount")))
+                .updateTime(updateTime)
+                .build();
+    }
+
+    private static Long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+}
@@ -0,0 +1,34 @@
+package com.inspur.bss.waf.elasticsearch.rollup;
+
+import com.inspur.bss.waf.dao.elasticsearch.defense.DefenderLogElasticsearchRepository;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+
+import java.util.function.Function;
+
+/**
+ * 防护日志统计维度
+ */
+public enum RollupDimension {
+    ATTACK_TYPE("attackType", DefenderLogElasticsearchRepository::initAttackTypeAggregationBuilder),
+    ATTACK_IP("attackIp", DefenderLogElasticsearchRepository::initAttackIpAggregationBuilder),
+    ATTACK_URL("targetUrl", DefenderLogElasticsearchRepository::initAttackUrlAggregationBuilder);
+
+    /**
+     * 聚合结果中维度值所在的列名
+     */
+    private final String valueColumn;
+    private final Function<DefenderLogElasticsearchRepository, AbstractAggregationBuilder<?>> aggregationBuilder;
+
+    RollupDimension(String valueColumn, Function<DefenderLogElasticsearchRepository, AbstractAggregationBuilder<?>> aggregationBuilder) {
+        this.valueColumn = valueColumn;
+        this.aggregationBuilder = aggregationBuilder;
+    }
+
+    public String getValueColumn() {
+        return valueColumn;
+    }
+
+    public AbstractAggregationBuilder<?> initAggregationBuilder(DefenderLogElasticsearchRepository repository) {
+        return aggregationBuilder.apply(repository);
+    }
+}
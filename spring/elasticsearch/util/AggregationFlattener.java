@@ -0,0 +1,260 @@
+package com.inspur.bss.waf.elasticsearch.utils;
+
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.ParsedMultiBucketAggregation;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.DateHistogramValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+import org.joda.time.DateTime;
+
+import java.util.*;
+
+/**
+ * 聚合树扁平化引擎
+ * 深度优先遍历Aggregation树,把每一行结果推送给调用方的{@link RowVisitor},
+ * 遍历过程中只复用一个路径缓冲区,不再为每个桶复制父级map
+ * 行的生成规则与{@link ESUtils#transferAggTree2Map}一致:
+ * 同级的聚合之间做笛卡尔积,没有产生任何行的聚合不参与合并,只有数值型指标聚合才会产生行
+ */
+public class AggregationFlattener {
+
+    private static final int DEFAULT_DEPTH = 16;
+
+    /**
+     * composite聚合的meta中记录date_histogram源名称的键
+     * 响应中composite桶的key只有值没有源的类型,date_histogram源的key是毫秒数,按该列表转换为Date
+     */
+    public static final String META_DATE_HISTOGRAM_SOURCES = "date_histogram_sources";
+
+    /**
+     * 路径缓冲区: 当前行的列名与列值,按入栈顺序存放
+     */
+    private String[] names = new String[DEFAULT_DEPTH];
+    private Object[] values = new Object[DEFAULT_DEPTH];
+    private int depth;
+
+    private final RowVisitor visitor;
+    private final Row row = new PathRow();
+
+    private AggregationFlattener(RowVisitor visitor) {
+        this.visitor = visitor;
+    }
+
+    /**
+     * 扁平化聚合结果,每一行回调一次visitor
+     * 注意: 回调中的Row是复用的视图,只在回调期间有效,需要保留时调用{@link Row#toMap()}
+     * @param aggregations
+     * @param visitor
+     */
+    public static void flatten(List<Aggregation> aggregations, RowVisitor visitor) {
+        new AggregationFlattener(visitor).walk(aggregations, 0, false, null);
+    }
+
+    /**
+     * 扁平化composite聚合的一页结果
+     * 每个桶的key作为行的列,桶内的指标聚合按{@link #flatten}的规则展开;
+     * 构造聚合时通过{@link #dateHistogramSourcesMeta}设置了meta的,date_histogram源的key转换为Date
+     * @param compositeAggregation
+     * @param visitor
+     */
+    public static void flattenComposite(CompositeAggregation compositeAggregation, RowVisitor visitor) {
+        AggregationFlattener flattener = new AggregationFlattener(visitor);
+        Collection<?> dateSources = dateHistogramSources(compositeAggregation);
+        for (CompositeAggregation.Bucket bucket : compositeAggregation.getBuckets()) {
+            for (Map.Entry<String, Object> key : bucket.getKey().entrySet()) {
+                Object value = key.getValue();
+                if (value instanceof Number && dateSources.contains(key.getKey())) {
+                    value = new Date(((Number) value).longValue());
+                }
+                flattener.push(key.getKey(), convertType(value));
+            }
+            flattener.walk(bucket.getAggregations().asList(), 0, false, null);
+            while (flattener.depth > 0) {
+                flattener.pop();
+            }
+        }
+    }
+
+    /**
+     * 构造composite聚合的meta,记录其中date_histogram源的名称,设置到CompositeAggregationBuilder#setMetaData后随响应返回
+     * @param sources
+     * @return
+     */
+    public static Map<String, Object> dateHistogramSourcesMeta(List<CompositeValuesSourceBuilder<?>> sources) {
+        List<String> names = new ArrayList<>();
+        for (CompositeValuesSourceBuilder<?> source : sources) {
+            if (source instanceof DateHistogramValuesSourceBuilder) {
+                names.add(source.name());
+            }
+        }
+        return Collections.singletonMap(META_DATE_HISTOGRAM_SOURCES, names);
+    }
+
+    private static Collection<?> dateHistogramSources(CompositeAggregation compositeAggregation) {
+        Map<String, Object> metaData = compositeAggregation.getMetaData();
+        Object names = metaData == null ? null : metaData.get(META_DATE_HISTOGRAM_SOURCES);
+        return names instanceof Collection ? (Collection<?>) names : Collections.emptyList();
+    }
+
+    /**
+     * 扁平化聚合结果为List<Map>
+     * @param aggregations
+     * @return
+     */
+    public static List<Map<String, Object>> flattenToMaps(List<Aggregation> aggregations) {
+        List<Map<String, Object>> resultMaps = new ArrayList<>();
+        flatten(aggregations, row -> resultMaps.add(row.toMap()));
+        return resultMaps;
+    }
+
+    /**
+     * 遍历同级聚合中下标为index及之后的聚合
+     * @param siblings 同级聚合
+     * @param index 当前处理的下标
+     * @param produced 本级在index之前是否已经有聚合产生了行
+     * @param next 本级处理完之后的后续处理,为null表示输出当前行
+     */
+    private void walk(List<Aggregation> siblings, int index, boolean produced, Runnable next) {
+        if (index == siblings.size()) {
+            if (produced) {
+                if (next == null) {
+                    visitor.visit(row);
+                } else {
+                    next.run();
+                }
+            }
+            return;
+        }
+        Aggregation aggregation = siblings.get(index);
+        if (aggregation instanceof ParsedMultiBucketAggregation && hasRows(aggregation)) {
+            MultiBucketsAggregation multiBucketsAggregation = (MultiBucketsAggregation) aggregation;
+            String aggregationName = multiBucketsAggregation.getName();
+            Runnable continuation = () -> walk(siblings, index + 1, true, next);
+            for (MultiBucketsAggregation.Bucket bucket : multiBucketsAggregation.getBuckets()) {
+                push(aggregationName, convertType(bucket.getKey()));
+                walk(bucket.getAggregations().asList(), 0, false, continuation);
+                pop();
+            }
+        } else if (aggregation instanceof NumericMetricsAggregation.SingleValue) {
+            NumericMetricsAggregation.SingleValue singleValueAggregation = (NumericMetricsAggregation.SingleValue) aggregation;
+            push(singleValueAggregation.getName(), convertType(singleValueAggregation.value()));
+            walk(siblings, index + 1, true, next);
+            pop();
+        } else {
+            walk(siblings, index + 1, produced, next);
+        }
+    }
+
+    /**
+     * 判断聚合是否会产生行(子树中至少有一个数值型指标聚合)
+     * @param aggregation
+     * @return
+     */
+    private static boolean hasRows(Aggregation aggregation) {
+        if (aggregation instanceof NumericMetricsAggregation.SingleValue) {
+            return true;
+        }
+        if (aggregation instanceof ParsedMultiBucketAggregation) {
+            for (MultiBucketsAggregation.Bucket bucket : ((MultiBucketsAggregation) aggregation).getBuckets()) {
+                for (Aggregation subAggregation : bucket.getAggregations()) {
+                    if (hasRows(subAggregation)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void push(String name, Object value) {
+        if (depth == names.length) {
+            names = Arrays.copyOf(names, depth * 2);
+            values = Arrays.copyOf(values, depth * 2);
+        }
+        names[depth] = name;
+        values[depth] = value;
+        depth++;
+    }
+
+    private void pop() {
+        depth--;
+        names[depth] = null;
+        values[depth] = null;
+    }
+
+    static Object convertType(Object object) {
+        if (object instanceof DateTime) {
+            return new Date(((DateTime) object).getMillis());
+        }
+        return object;
+    }
+
+    /**
+     * 行访问者
+     */
+    @FunctionalInterface
+    public interface RowVisitor {
+        void visit(Row row);
+    }
+
+    /**
+     * 扁平化后的一行数据
+     */
+    public interface Row {
+
+        /**
+         * 按列名取值,同名列以最内层的为准
+         * @param name
+         * @return
+         */
+        Object get(String name);
+
+        int size();
+
+        String name(int index);
+
+        Object value(int index);
+
+        /**
+         * 复制为独立的map
+         * @return
+         */
+        default Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>(size() * 2);
+            for (int i = 0; i < size(); i++) {
+                map.put(name(i), value(i));
+            }
+            return map;
+        }
+    }
+
+    private class PathRow implements Row {
+
+        @Override
+        public Object get(String name) {
+            for (int i = depth - 1; i >= 0; i--) {
+                if (names[i].equals(name)) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return depth;
+        }
+
+        @Override
+        public String name(int index) {
+            return names[index];
+        }
+
+        @Override
+        public Object value(int index) {
+            return values[index];
+        }
+    }
+}
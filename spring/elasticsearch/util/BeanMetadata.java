@@ -0,0 +1,60 @@
+package com.inspur.bss.waf.elasticsearch.utils;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.springframework.util.ReflectionUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按类缓存的bean元数据: @JsonProperty别名与预先生成的行绑定器
+ * 使用ClassValue缓存,并发读写安全,且缓存随Class一起被回收,不会阻止类卸载
+ * @param <T>
+ */
+public final class BeanMetadata<T> {
+
+    private static final ClassValue<BeanMetadata<?>> CACHE = new ClassValue<BeanMetadata<?>>() {
+        @Override
+        protected BeanMetadata<?> computeValue(Class<?> type) {
+            return create(type);
+        }
+    };
+
+    private final Map<String, String> aliasMap;
+    private final RowBeanBinder<T> binder;
+
+    private BeanMetadata(Map<String, String> aliasMap, RowBeanBinder<T> binder) {
+        this.aliasMap = aliasMap;
+        this.binder = binder;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> BeanMetadata<T> of(Class<T> clazz) {
+        return (BeanMetadata<T>) CACHE.get(clazz);
+    }
+
+    /**
+     * 字段名 -> @JsonProperty别名
+     * @return
+     */
+    public Map<String, String> getAliasMap() {
+        return aliasMap;
+    }
+
+    public RowBeanBinder<T> getBinder() {
+        return binder;
+    }
+
+    private static <T> BeanMetadata<T> create(Class<T> clazz) {
+        Map<String, String> aliasMap = new HashMap<>();
+        ReflectionUtils.doWithFields(clazz, field -> {
+            JsonProperty annotation = field.getAnnotation(JsonProperty.class);
+            if (annotation != null) {
+                aliasMap.put(field.getName(), annotation.value());
+            }
+        });
+        Map<String, String> unmodifiableAliasMap = Collections.unmodifiableMap(aliasMap);
+        return new BeanMetadata<>(unmodifiableAliasMap, RowBeanBinder.create(clazz, unmodifiableAliasMap));
+    }
+}
@@ -1,18 +1,16 @@
 package com.inspur.bss.waf.elasticsearch.utils;
 
-import com.fasterxml.jackson.annotation.JsonProperty;
-import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.collections.ListUtils;
 import org.apache.commons.collections.MapUtils;
 import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.ParsedMultiBucketAggregation;
 import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
 import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
 import org.joda.time.DateTime;
 import org.springframework.data.elasticsearch.core.aggregation.AggregatedPage;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
-import org.springframework.util.ReflectionUtils;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -24,8 +22,6 @@ import java.util.stream.Collectors;
 @Component
 public class ESUtils {
 
-    public final static Map<Class<?>,Map<String,String>> aliasMapCache = new HashMap<>();
-
     /**
      * 从AggregatedPage取得聚合结果
      * @param aggregatedPage
@@ -33,36 +29,16 @@ public class ESUtils {
      */
     public static List<Map<String,Object>> getResultMap(AggregatedPage<?> aggregatedPage){
         List<Aggregation> aggregations = aggregatedPage.getAggregations().asList();
-        return transferAggTree2Map(aggregations,null);
+        return AggregationFlattener.flattenToMaps(aggregations);
     }
 
     /**
-     * 获取带@JsonProperty 的字段别名信息
-     * @param clazz
-     * @return
+     * 从AggregatedPage逐行读取聚合结果,不生成中间的List<Map>
+     * @param aggregatedPage
+     * @param visitor
      */
-    private static Map<String,String> getAliasMapByClass(Class<?> clazz){
-        Map<String, String> aliasMap;
-        if( aliasMapCache.containsKey(clazz) ){
-            aliasMap = aliasMapCache.get(clazz);
-        }else {
-            aliasMap = new HashMap<>();
-            ReflectionUtils.doWithFields(clazz,(filed) -> {
-                JsonProperty annotation = filed.getAnnotation(JsonProperty.class);
-                if(annotation != null){
-                    aliasMap.put(filed.getName(),annotation.value());
-                }
-            });
-            aliasMapCache.put(clazz, aliasMap);
-        }
-        return aliasMap;
-    }
-
-    private static void doAliase(Map<String,Object> sourceMap,Map<String, String> aliasMap){
-        aliasMap.forEach(
-                (sourceName, aliasName) -> Optional.ofNullable(sourceMap.get(aliasName))
-            .ifPresent(value -> sourceMap.put(sourceName, value))
-        );
+    public static void visitResultRows(AggregatedPage<?> aggregatedPage, AggregationFlattener.RowVisitor visitor){
+        AggregationFlattener.flatten(aggregatedPage.getAggregations().asList(), visitor);
     }
 
     /**
@@ -73,23 +49,64 @@ public class ESUtils {
      * @return
      */
     public static <T> List<T> convertMap2Bean(List<Map<String,Object>> maps, Class<T> clazz){
-        Map<String, String> aliasMap = getAliasMapByClass(clazz);
+        RowBeanBinder<T> binder = RowBeanBinder.of(clazz);
         return maps.stream()
-                .peek(mapItem -> doAliase(mapItem,aliasMap))
-                .map( mapItem -> {
-                    T tempBean;
-                    try {
-                        tempBean  = clazz.getConstructor(null).newInstance();
-                        BeanUtils.populate(tempBean,mapItem);
-                    } catch (Exception e) {
-                        return null;
-                    }
-                    return tempBean;
-                }).filter(Objects::nonNull).collect(Collectors.toList());
+                .map( mapItem -> binder.bind(mapItem::get))
+                .filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * 从AggregatedPage取得聚合结果并直接绑定为bean,不生成中间的List<Map>
+     * @param aggregatedPage
+     * @param clazz
+     * @param <T>
+     * @return
+     */
+    public static <T> List<T> getResultBeans(AggregatedPage<?> aggregatedPage, Class<T> clazz){
+        return getResultBeans(aggregatedPage.getAggregations().asList(), clazz);
+    }
+
+    /**
+     * 把聚合结果直接绑定为bean
+     * @param aggregations
+     * @param clazz
+     * @param <T>
+     * @return
+     */
+    public static <T> List<T> getResultBeans(List<Aggregation> aggregations, Class<T> clazz){
+        RowBeanBinder<T> binder = RowBeanBinder.of(clazz);
+        List<T> beans = new ArrayList<>();
+        AggregationFlattener.flatten(aggregations, row -> {
+            T bean = binder.bind(row::get);
+            if(bean != null){
+                beans.add(bean);
+            }
+        });
+        return beans;
+    }
+
+    /**
+     * 把composite聚合的一页结果绑定为bean
+     * @param compositeAggregation
+     * @param clazz
+     * @param <T>
+     * @return
+     */
+    public static <T> List<T> getCompositeResultBeans(CompositeAggregation compositeAggregation, Class<T> clazz){
+        RowBeanBinder<T> binder = RowBeanBinder.of(clazz);
+        List<T> beans = new ArrayList<>(compositeAggregation.getBuckets().size());
+        AggregationFlattener.flattenComposite(compositeAggregation, row -> {
+            T bean = binder.bind(row::get);
+            if(bean != null){
+                beans.add(bean);
+            }
+        });
+        return beans;
     }
 
     /**
      * 把 树型的Aggregation转换为 二维的List<map>
+     * 每个桶都会复制一次父级map,大结果集请使用{@link AggregationFlattener}
      * @param aggregations
      * @param partenMap
      * @return
@@ -0,0 +1,75 @@
+package com.inspur.bss.waf.elasticsearch.utils;
+
+import java.util.*;
+
+/**
+ * 合并按时间分片查询得到的聚合行
+ * 除指标列外的所有列相同的行视为同一个桶: 计数类指标求和,基数类指标取最大值
+ * (ES不返回HLL草图,客户端无法精确合并基数,分片边界需要与统计粒度对齐,保证同一个桶只落在一个分片中)
+ */
+public class RollupSliceMerger {
+
+    private final Set<String> sumMetrics;
+    private final Set<String> maxMetrics;
+    private final Map<List<Object>, Map<String, Object>> buckets = new LinkedHashMap<>();
+
+    public RollupSliceMerger(Set<String> sumMetrics, Set<String> maxMetrics) {
+        this.sumMetrics = sumMetrics;
+        this.maxMetrics = maxMetrics;
+    }
+
+    /**
+     * 合并一个分片的结果,同一个merger不要并发调用
+     * @param rows
+     */
+    public void merge(List<Map<String, Object>> rows) {
+        for (Map<String, Object> row : rows) {
+            Map<String, Object> merged = buckets.putIfAbsent(bucketKey(row), row);
+            if (merged == null) {
+                continue;
+            }
+            for (String metric : sumMetrics) {
+                merged.put(metric, sum(merged.get(metric), row.get(metric)));
+            }
+            for (String metric : maxMetrics) {
+                merged.put(metric, max(merged.get(metric), row.get(metric)));
+            }
+        }
+    }
+
+    public List<Map<String, Object>> getResult() {
+        return new ArrayList<>(buckets.values());
+    }
+
+    private List<Object> bucketKey(Map<String, Object> row) {
+        TreeMap<String, Object> keyColumns = new TreeMap<>(row);
+        keyColumns.keySet().removeAll(sumMetrics);
+        keyColumns.keySet().removeAll(maxMetrics);
+        List<Object> key = new ArrayList<>(keyColumns.size() * 2);
+        keyColumns.forEach((name, value) -> {
+            key.add(name);
+            key.add(value);
+        });
+        return key;
+    }
+
+    private static Object sum(Object left, Object right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        return ((Number) left).doubleValue() + ((Number) right).doubleValue();
+    }
+
+    private static Object max(Object left, Object right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        return ((Number) left).doubleValue() >= ((Number) right).doubleValue() ? left : right;
+    }
+}
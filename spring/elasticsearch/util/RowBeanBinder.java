@@ -0,0 +1,192 @@
+package com.inspur.bss.waf.elasticsearch.utils;
+
+import org.apache.commons.beanutils.ConvertUtils;
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.ClassUtils;
+
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 聚合行到bean的绑定器
+ * 每个目标类只生成一次(见{@link BeanMetadata}): 构造器与setter通过LambdaMetafactory生成,
+ * 别名(@JsonProperty)与类型转换在生成时确定,绑定时不再有反射和BeanUtils.populate
+ * @param <T>
+ */
+public final class RowBeanBinder<T> {
+
+    private final Class<T> beanClass;
+    private final Supplier<T> constructor;
+    private final PropertyBinding[] bindings;
+
+    private RowBeanBinder(Class<T> beanClass, Supplier<T> constructor, PropertyBinding[] bindings) {
+        this.beanClass = beanClass;
+        this.constructor = constructor;
+        this.bindings = bindings;
+    }
+
+    /**
+     * 获取目标类的绑定器,由{@link BeanMetadata}按类缓存
+     * @param clazz
+     * @param <T>
+     * @return
+     */
+    public static <T> RowBeanBinder<T> of(Class<T> clazz) {
+        return BeanMetadata.of(clazz).getBinder();
+    }
+
+    /**
+     * 把一行数据绑定为bean,列名可以是属性名也可以是@JsonProperty别名(别名优先)
+     * @param source 按列名取值
+     * @return 转换失败返回null
+     */
+    public T bind(Function<String, Object> source) {
+        T bean;
+        try {
+            bean = constructor.get();
+            for (PropertyBinding binding : bindings) {
+                Object value = binding.aliasName == null ? null : source.apply(binding.aliasName);
+                if (value == null) {
+                    value = source.apply(binding.propertyName);
+                }
+                if (value != null) {
+                    binding.setter.accept(bean, binding.converter.apply(value));
+                }
+            }
+        } catch (Exception e) {
+            return null;
+        }
+        return bean;
+    }
+
+    public Class<T> getBeanClass() {
+        return beanClass;
+    }
+
+    static <T> RowBeanBinder<T> create(Class<T> clazz, Map<String, String> aliasMap) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<PropertyBinding> bindings = new ArrayList<>();
+        for (PropertyDescriptor descriptor : BeanUtils.getPropertyDescriptors(clazz)) {
+            Method writeMethod = descriptor.getWriteMethod();
+            if (writeMethod == null) {
+                continue;
+            }
+            Class<?> propertyType = writeMethod.getParameterTypes()[0];
+            bindings.add(new PropertyBinding(
+                    descriptor.getName(),
+                    aliasMap.get(descriptor.getName()),
+                    compileSetter(lookup, clazz, writeMethod, propertyType),
+                    compileConverter(propertyType)
+            ));
+        }
+        return new RowBeanBinder<>(clazz, compileConstructor(lookup, clazz), bindings.toArray(new PropertyBinding[0]));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Supplier<T> compileConstructor(MethodHandles.Lookup lookup, Class<T> clazz) {
+        MethodHandle constructor;
+        try {
+            constructor = lookup.findConstructor(clazz, MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException(clazz.getName() + " does not have an accessible no-arg constructor", e);
+        }
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+                    MethodType.methodType(Supplier.class),
+                    MethodType.methodType(Object.class),
+                    constructor,
+                    MethodType.methodType(clazz));
+            return (Supplier<T>) site.getTarget().invoke();
+        } catch (Throwable e) {
+            //LambdaMetafactory不可用时(如类加载器不可见)退化为MethodHandle调用
+            MethodHandle generic = constructor.asType(MethodType.methodType(Object.class));
+            return () -> {
+                try {
+                    return (T) generic.invokeExact();
+                } catch (Throwable t) {
+                    throw new IllegalStateException(t);
+                }
+            };
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<Object, Object> compileSetter(MethodHandles.Lookup lookup, Class<?> clazz, Method writeMethod, Class<?> propertyType) {
+        MethodHandle setter;
+        try {
+            setter = lookup.unreflect(writeMethod);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("setter " + writeMethod + " is not accessible", e);
+        }
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "accept",
+                    MethodType.methodType(BiConsumer.class),
+                    MethodType.methodType(void.class, Object.class, Object.class),
+                    setter,
+                    MethodType.methodType(void.class, clazz, ClassUtils.resolvePrimitiveIfNecessary(propertyType)));
+            return (BiConsumer<Object, Object>) site.getTarget().invoke();
+        } catch (Throwable e) {
+            MethodHandle generic = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            return (bean, value) -> {
+                try {
+                    generic.invokeExact(bean, value);
+                } catch (Throwable t) {
+                    throw new IllegalStateException(t);
+                }
+            };
+        }
+    }
+
+    /**
+     * 按属性类型预先确定类型转换,未覆盖的类型交给commons-beanutils的ConvertUtils
+     * @param propertyType
+     * @return
+     */
+    private static Function<Object, Object> compileConverter(Class<?> propertyType) {
+        Class<?> type = ClassUtils.resolvePrimitiveIfNecessary(propertyType);
+        if (type == String.class) {
+            return String::valueOf;
+        }
+        if (type == Long.class) {
+            return value -> value instanceof Number ? ((Number) value).longValue() : Long.valueOf(value.toString());
+        }
+        if (type == Integer.class) {
+            return value -> value instanceof Number ? ((Number) value).intValue() : Integer.valueOf(value.toString());
+        }
+        if (type == Double.class) {
+            return value -> value instanceof Number ? ((Number) value).doubleValue() : Double.valueOf(value.toString());
+        }
+        if (type == BigDecimal.class) {
+            return value -> value instanceof BigDecimal ? value : new BigDecimal(value.toString());
+        }
+        if (type == Date.class) {
+            return value -> value instanceof Date ? value
+                    : value instanceof Number ? new Date(((Number) value).longValue()) : ConvertUtils.convert(value, Date.class);
+        }
+        return value -> type.isInstance(value) ? value : ConvertUtils.convert(value, type);
+    }
+
+    private static final class PropertyBinding {
+        private final String propertyName;
+        private final String aliasName;
+        private final BiConsumer<Object, Object> setter;
+        private final Function<Object, Object> converter;
+
+        private PropertyBinding(String propertyName, String aliasName, BiConsumer<Object, Object> setter, Function<Object, Object> converter) {
+            this.propertyName = propertyName;
+            this.aliasName = aliasName;
+            this.setter = setter;
+            this.converter = converter;
+        }
+    }
+}
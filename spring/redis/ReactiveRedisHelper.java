@@ -0,0 +1,301 @@
+package com.inspur.bss.waf.redis;
+
+import com.inspur.bss.waf.redis.cache.RedisNearCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redis缓存非阻塞封装类
+ * 【与{@link RedisHelper}的String/List方法一一对应，返回Mono/Flux，不占用调用线程；
+ * 序列化方式与RedisHelper一致(String使用字符串序列化，List使用redisTemplate的序列化)，两者读写的数据互通；
+ * 字符串写入与删除和RedisHelper一样使本地缓存{@link RedisNearCache}失效(订阅时与完成时各一次)；
+ * 阻塞弹出只占用一个等待中的连接，不占用线程，超时时间应小于客户端的命令超时时间；
+ * 需要在WebFlux等非阻塞链路中使用，阻塞线程中调用block()与直接用RedisHelper没有区别】
+ */
+@SuppressWarnings("all")
+@Component("reactiveRedisHelper")
+public class ReactiveRedisHelper
+{
+    @Autowired
+    private ReactiveRedisTemplate<String, Object> reactiveRedisTemplate;
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    @Autowired
+    private RedisNearCache nearCache;
+
+    /**
+     * 根据key删除缓存
+     *
+     * @param key 键
+     * @return 是否删除
+     */
+    public Mono<Boolean> removeForValue(String key)
+    {
+        return invalidating(key, reactiveStringRedisTemplate.delete(key).map(count -> count > 0));
+    }
+
+    /**
+     * 获取指定key的失效时间
+     *
+     * @param key 键
+     * @return 返回失效时间（单位：秒），key不存在或没有失效时间时为空
+     */
+    public Mono<Long> getExpireForValue(String key)
+    {
+        return reactiveStringRedisTemplate.getExpire(key).map(Duration::getSeconds);
+    }
+
+    /**
+     * 判断redis中是否存在指定的key
+     *
+     * @param key 键
+     */
+    public Mono<Boolean> isExistForValue(String key)
+    {
+        return reactiveStringRedisTemplate.hasKey(key);
+    }
+
+    /**
+     * 字符串型K-V  塞值
+     *
+     * @param key   键
+     * @param value 值
+     */
+    public Mono<Boolean> setForValue(String key, String value)
+    {
+        return invalidating(key, reactiveStringRedisTemplate.opsForValue().set(key, value));
+    }
+
+    public <T> Mono<Boolean> setObjectValue(String key, T value)
+    {
+        return invalidating(key, reactiveRedisTemplate.opsForValue().set(key, value));
+    }
+
+    public Mono<Object> getObjectValue(String key)
+    {
+        return reactiveRedisTemplate.opsForValue().get(key);
+    }
+
+    /**
+     * 指定有效时间的存值
+     *
+     * @param key     键
+     * @param value   值
+     * @param timeout 超时时间
+     * @param unit    时间单位，传null 默认为秒
+     */
+    public Mono<Boolean> setForValue(String key, String value, long timeout, TimeUnit unit)
+    {
+        return invalidating(key, reactiveStringRedisTemplate.opsForValue().set(key, value, toDuration(timeout, unit)));
+    }
+
+    /**
+     * 如果缓存中存在该key，则存储失败，否则成功
+     *
+     * @param key   键
+     * @param value 值
+     */
+    public Mono<Boolean> setIfAbsentForValue(String key, String value)
+    {
+        return invalidating(key, reactiveStringRedisTemplate.opsForValue().setIfAbsent(key, value));
+    }
+
+    /**
+     * 为多个键同时设置值
+     *
+     * @param map 传入<KEY，VALUE>形式的map值，会批量存储
+     */
+    public Mono<Boolean> multiSetForValue(Map<String, String> map)
+    {
+        return invalidating(map.keySet(), reactiveStringRedisTemplate.opsForValue().multiSet(map));
+    }
+
+    /**
+     * 获取多个键的值
+     *
+     * @param list 传入List<KEY>形式的集合，会批量获取
+     * @return 与传入顺序一致的结果集，不存在的key对应null
+     */
+    public Mono<List<String>> multiGetForValue(List<String> list)
+    {
+        return reactiveStringRedisTemplate.opsForValue().multiGet(list);
+    }
+
+    /**
+     * 根据Key获取对应的值
+     *
+     * @param key 键
+     */
+    public Mono<String> getForValue(String key)
+    {
+        return reactiveStringRedisTemplate.opsForValue().get(key);
+    }
+
+    /**
+     * 根据key获取到存储的字符串的长度
+     *
+     * @param key 键
+     */
+    public Mono<Long> sizeForValue(String key)
+    {
+        return reactiveStringRedisTemplate.opsForValue().size(key);
+    }
+
+    /**
+     * Redis的List数据结构
+     * 【获取字符串列表】
+     *
+     * @param key   键
+     * @param start 索引开始位置 0 是从列表的第一个位置开始
+     * @param end   索引的结束位置  -1表示到最后一位
+     */
+    public Flux<String> getForList(String key, long start, long end)
+    {
+        return reactiveRedisTemplate.opsForList().range(key, start, end).map(Objects::toString);
+    }
+
+    /**
+     * 修剪现有列表，使其只包含指定的指定范围的元素
+     */
+    public Mono<Boolean> trimForList(String key, long start, long end)
+    {
+        return reactiveRedisTemplate.opsForList().trim(key, start, end);
+    }
+
+    /**
+     * 返回存储在键中的列表的长度
+     */
+    public Mono<Long> sizeForList(String key)
+    {
+        return reactiveRedisTemplate.opsForList().size(key);
+    }
+
+    /**
+     * 将指定的值插入存储在键的列表的头部
+     *
+     * @return 推送操作后的列表的长度
+     */
+    public Mono<Long> leftPushForList(String key, String value)
+    {
+        return reactiveRedisTemplate.opsForList().leftPush(key, value);
+    }
+
+    public Mono<Long> leftPushAllForList(String key, List<String> valueList)
+    {
+        return reactiveRedisTemplate.opsForList().leftPushAll(key, (List) valueList);
+    }
+
+    /**
+     * 将指定的值插入存储在键的列表的尾部
+     *
+     * @return 推送操作后的列表的长度
+     */
+    public Mono<Long> rightPushForList(String key, String value)
+    {
+        return reactiveRedisTemplate.opsForList().rightPush(key, value);
+    }
+
+    public Mono<Long> rightPushAllForList(String key, List<String> valueList)
+    {
+        return reactiveRedisTemplate.opsForList().rightPushAll(key, (List) valueList);
+    }
+
+    /**
+     * 在列表中index的位置设置value值
+     */
+    public Mono<Boolean> setForList(String key, long index, String value)
+    {
+        return reactiveRedisTemplate.opsForList().set(key, index, value);
+    }
+
+    /**
+     * 从列表中删除等于value值的元素，count规则同{@link RedisHelper#removeForlist}
+     */
+    public Mono<Long> removeForList(String key, long count, Object value)
+    {
+        return reactiveRedisTemplate.opsForList().remove(key, count, value);
+    }
+
+    /**
+     * 获取指定下标的list中存储的值
+     */
+    public Mono<String> indexForList(String key, long index)
+    {
+        return reactiveRedisTemplate.opsForList().index(key, index).map(Objects::toString);
+    }
+
+    /**
+     * 弹出最左边的元素
+     */
+    public Mono<String> leftPopForList(String key)
+    {
+        return reactiveRedisTemplate.opsForList().leftPop(key).map(Objects::toString);
+    }
+
+    /**
+     * 移出并获取列表的第一个元素
+     * [列表没有元素时等待到超时或发现可弹出元素为止，等待期间不占用线程；超时时为空]
+     *
+     * @param timeout 超时时间
+     * @param unit    时间单位 传值为null,则默认为秒
+     */
+    public Mono<String> leftPopForList(String key, long timeout, TimeUnit unit)
+    {
+        return reactiveRedisTemplate.opsForList().leftPop(key, toDuration(timeout, unit)).map(Objects::toString);
+    }
+
+    /**
+     * 弹出最右边的元素
+     */
+    public Mono<String> rightPopForList(String key)
+    {
+        return reactiveRedisTemplate.opsForList().rightPop(key).map(Objects::toString);
+    }
+
+    /**
+     * 移出并获取列表的最后一个元素
+     * [列表没有元素时等待到超时或发现可弹出元素为止，等待期间不占用线程；超时时为空]
+     *
+     * @param timeout 超时时间
+     * @param unit    时间单位 传值为null,则默认为秒
+     */
+    public Mono<String> rightPopForList(String key, long timeout, TimeUnit unit)
+    {
+        return reactiveRedisTemplate.opsForList().rightPop(key, toDuration(timeout, unit)).map(Objects::toString);
+    }
+
+    private <T> Mono<T> invalidating(String key, Mono<T> write)
+    {
+        return invalidating(Collections.singleton(key), write);
+    }
+
+    /**
+     * 订阅时先使本地缓存失效，写入结束(含失败与取消)后再失效一次，覆盖写入期间从redis读到旧值并写入本地缓存的情况
+     */
+    private <T> Mono<T> invalidating(Collection<String> keys, Mono<T> write)
+    {
+        return Mono.defer(() -> {
+            keys.forEach(nearCache::invalidate);
+            return write;
+        }).doFinally(signal -> keys.forEach(nearCache::invalidate));
+    }
+
+    private static Duration toDuration(long timeout, TimeUnit unit)
+    {
+        return Duration.ofMillis((null == unit ? TimeUnit.SECONDS : unit).toMillis(timeout));
+    }
+}
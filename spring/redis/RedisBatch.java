@@ -0,0 +1,299 @@
+package com.inspur.bss.waf.redis;
+
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Redis批量操作
+ * 【在{@link RedisHelper#pipelined}的回调中登记操作，回调结束后一次性通过pipeline发送，
+ * 每个登记方法返回{@link Result}，pipeline执行完成后可取得对应的结果；
+ * String/Hash操作与StringRedisTemplate的序列化方式一致，List操作与RedisTemplate的序列化方式一致，
+ * 与RedisHelper中同名方法读写的数据互通】
+ */
+@SuppressWarnings("all")
+public class RedisBatch
+{
+    private final RedisSerializer<String> stringSerializer;
+
+    private final RedisSerializer keySerializer;
+
+    private final RedisSerializer valueSerializer;
+
+    private final List<Operation<?>> operations = new ArrayList<>();
+
+    /**
+     * 批量中修改了值的String key，执行时使本地缓存失效
+     */
+    private final Set<String> writtenKeys = new LinkedHashSet<>();
+
+    RedisBatch(RedisSerializer<String> stringSerializer, RedisSerializer keySerializer, RedisSerializer valueSerializer)
+    {
+        this.stringSerializer = stringSerializer;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+    }
+
+    /**
+     * 字符串型K-V  塞值
+     */
+    public Result<Boolean> setForValue(String key, String value)
+    {
+        writtenKeys.add(key);
+        return add(connection -> connection.set(rawString(key), rawString(value)), RedisBatch::toBoolean);
+    }
+
+    /**
+     * 指定有效时间的存值
+     *
+     * @param unit 时间单位，传null 默认为秒
+     */
+    public Result<Boolean> setForValue(String key, String value, long timeout, TimeUnit unit)
+    {
+        TimeUnit timeUnit = null == unit ? SECONDS : unit;
+        writtenKeys.add(key);
+        return add(connection -> connection.set(rawString(key), rawString(value), Expiration.from(timeout, timeUnit),
+                RedisStringCommands.SetOption.upsert()), RedisBatch::toBoolean);
+    }
+
+    public Result<String> getForValue(String key)
+    {
+        return add(connection -> connection.get(rawString(key)), raw -> stringSerializer.deserialize((byte[]) raw));
+    }
+
+    public Result<Long> removeForValue(String key)
+    {
+        writtenKeys.add(key);
+        return add(connection -> connection.del(rawString(key)), RedisBatch::toLong);
+    }
+
+    /**
+     * 设置失效时间
+     */
+    public Result<Boolean> expireForValue(String key, long timeout, TimeUnit unit)
+    {
+        TimeUnit timeUnit = null == unit ? SECONDS : unit;
+        return add(connection -> connection.pExpire(rawString(key), timeUnit.toMillis(timeout)), RedisBatch::toBoolean);
+    }
+
+    /**
+     * 获取指定key的失效时间（单位：秒）
+     */
+    public Result<Long> getExpireForValue(String key)
+    {
+        return add(connection -> connection.ttl(rawString(key), SECONDS), RedisBatch::toLong);
+    }
+
+    /**
+     * 获取key的数据类型，不存在时为NONE
+     */
+    public Result<DataType> typeForValue(String key)
+    {
+        return add(connection -> connection.type(rawString(key)), raw -> {
+            if (raw instanceof DataType)
+            {
+                return (DataType) raw;
+            }
+            if (raw instanceof byte[])
+            {
+                return DataType.fromCode(stringSerializer.deserialize((byte[]) raw));
+            }
+            return null == raw ? DataType.NONE : DataType.fromCode(raw.toString());
+        });
+    }
+
+    /**
+     * hash字段值增加delta，与RedisHelper的Hash操作一样按字符串序列化
+     */
+    public Result<Long> incrementForHash(String key, String field, long delta)
+    {
+        return add(connection -> connection.hIncrBy(rawString(key), rawString(field), delta), RedisBatch::toLong);
+    }
+
+    public Result<Long> leftPushForList(Object key, String value)
+    {
+        return add(connection -> connection.lPush(rawKey(key), rawValue(value)), RedisBatch::toLong);
+    }
+
+    public Result<Long> rightPushForList(Object key, String value)
+    {
+        return add(connection -> connection.rPush(rawKey(key), rawValue(value)), RedisBatch::toLong);
+    }
+
+    public Result<String> leftPopForList(Object key)
+    {
+        return add(connection -> connection.lPop(rawKey(key)), this::toStringValue);
+    }
+
+    public Result<String> rightPopForList(Object key)
+    {
+        return add(connection -> connection.rPop(rawKey(key)), this::toStringValue);
+    }
+
+    public Result<Long> sizeForList(Object key)
+    {
+        return add(connection -> connection.lLen(rawKey(key)), RedisBatch::toLong);
+    }
+
+    public Result<List<String>> getForList(Object key, long start, long end)
+    {
+        return add(connection -> connection.lRange(rawKey(key), start, end), raw -> {
+            List<String> values = new ArrayList<>();
+            if (raw != null)
+            {
+                for (Object item : (List<?>) raw)
+                {
+                    values.add(toStringValue(item));
+                }
+            }
+            return values;
+        });
+    }
+
+    /**
+     * 登记一个自定义操作，用于上面未封装的命令
+     *
+     * @param command 在pipeline连接上执行的命令，只能执行一条命令
+     * @param decoder 把原始结果转换为需要的类型
+     */
+    public <T> Result<T> add(Consumer<RedisConnection> command, Function<Object, T> decoder)
+    {
+        return add(command, decoder, new String[0]);
+    }
+
+    /**
+     * 登记一个会修改String值的自定义操作
+     *
+     * @param command     在pipeline连接上执行的命令，只能执行一条命令
+     * @param decoder     把原始结果转换为需要的类型
+     * @param writtenKeys 命令修改的key，执行时使本地缓存失效
+     */
+    public <T> Result<T> add(Consumer<RedisConnection> command, Function<Object, T> decoder, String... writtenKeys)
+    {
+        this.writtenKeys.addAll(Arrays.asList(writtenKeys));
+        Result<T> result = new Result<>();
+        operations.add(new Operation<>(command, decoder, result));
+        return result;
+    }
+
+    public int size()
+    {
+        return operations.size();
+    }
+
+    Set<String> getWrittenKeys()
+    {
+        return writtenKeys;
+    }
+
+    List<Operation<?>> getOperations()
+    {
+        return operations;
+    }
+
+    byte[] rawString(String value)
+    {
+        return stringSerializer.serialize(value);
+    }
+
+    private byte[] rawKey(Object key)
+    {
+        return keySerializer.serialize(key);
+    }
+
+    private byte[] rawValue(Object value)
+    {
+        return valueSerializer.serialize(value);
+    }
+
+    private String toStringValue(Object raw)
+    {
+        Object o = raw instanceof byte[] ? valueSerializer.deserialize((byte[]) raw) : raw;
+        return null == o ? null : o.toString();
+    }
+
+    private static Boolean toBoolean(Object raw)
+    {
+        if (raw instanceof Boolean)
+        {
+            return (Boolean) raw;
+        }
+        return null != raw && !(raw instanceof Number && ((Number) raw).longValue() == 0);
+    }
+
+    private static Long toLong(Object raw)
+    {
+        return raw instanceof Number ? ((Number) raw).longValue() : null;
+    }
+
+    /**
+     * 批量操作中单个操作的结果，pipeline执行完成后才能获取
+     */
+    public static final class Result<T>
+    {
+        private T value;
+
+        private boolean done;
+
+        public T get()
+        {
+            if (!done)
+            {
+                throw new IllegalStateException("redis batch has not been executed");
+            }
+            return value;
+        }
+
+        public boolean isDone()
+        {
+            return done;
+        }
+
+        void complete(T value)
+        {
+            this.value = value;
+            this.done = true;
+        }
+    }
+
+    static final class Operation<T>
+    {
+        private final Consumer<RedisConnection> command;
+
+        private final Function<Object, T> decoder;
+
+        private final Result<T> result;
+
+        Operation(Consumer<RedisConnection> command, Function<Object, T> decoder, Result<T> result)
+        {
+            this.command = command;
+            this.decoder = decoder;
+            this.result = result;
+        }
+
+        void execute(RedisConnection connection)
+        {
+            command.accept(connection);
+        }
+
+        T complete(Object raw)
+        {
+            T value = decoder.apply(raw);
+            result.complete(value);
+            return value;
+        }
+    }
+}
@@ -1,20 +1,41 @@
 package com.inspur.bss.waf.redis;
 
+import com.inspur.bss.waf.redis.cache.RedisNearCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * Redis缓存封装类
- * 【注：目前只是封装了Redis的String/List两种数据结构的方法，直接使用redisTemplate也支持Hash/Set/ZSet
- * 后续如果有用到Hash/Set/ZSet可以再次进行封装到该方法中；String比较特殊，使用jar包自带的StringRedisTemplate】
+ * 【注：封装了Redis的String/List/Hash/Set/ZSet数据结构的方法；String/Hash/Set/ZSet使用jar包自带的StringRedisTemplate，
+ * 字段与值均按字符串存储，小对象可以使用redis紧凑的listpack/intset编码；List沿用redisTemplate的序列化方式】
  *
  */
 @SuppressWarnings("all")
@@ -27,6 +48,14 @@ public class RedisHelper
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private RedisNearCache nearCache;
+
+    /**
+     * 单个pipeline最多发送的命令数，超过后自动拆分，避免单次请求/响应过大
+     */
+    public static final int PIPELINE_CHUNK_SIZE = 1000;
+
     /**
      * 根据key删除缓存
      *
@@ -34,6 +63,7 @@ public class RedisHelper
      */
     public Boolean removeForValue(String key)
     {
+        nearCache.invalidate(key);
         return stringRedisTemplate.delete(key);
     }
 
@@ -99,17 +129,25 @@ public class RedisHelper
      */
     public void setForValue(String key, String value)
     {
+        nearCache.invalidate(key);
         stringRedisTemplate.opsForValue().set(key, value);
     }
 
     public <T> void setForValue(String key, T value)
     {
+        nearCache.invalidate(key);
         redisTemplate.opsForValue().set(key, value);
     }
 
+    /**
+     * 根据key获取对象值
+     * [key匹配本地缓存前缀时优先读本地缓存，返回的对象在调用方之间共享，不要修改]
+     *
+     * @param key 键
+     */
     public Object getObjectValue(String key)
     {
-        return redisTemplate.opsForValue().get(key);
+        return nearCache.get(RedisNearCache.KIND_OBJECT, key, () -> redisTemplate.opsForValue().get(key));
     }
 
     public String getStringValue(String key)
@@ -131,6 +169,7 @@ public class RedisHelper
         {
             unit = SECONDS;
         }
+        nearCache.invalidate(key);
         stringRedisTemplate.opsForValue().set(key, value, timeout, unit);
     }
 
@@ -143,6 +182,7 @@ public class RedisHelper
      */
     public Boolean setIfAbsentForValue(String key, String value)
     {
+        nearCache.invalidate(key);
         return stringRedisTemplate.opsForValue().setIfAbsent(key, value);
     }
 
@@ -153,31 +193,76 @@ public class RedisHelper
      */
     public void multiSetForValue(Map<String, String> map)
     {
+        map.keySet().forEach(nearCache::invalidate);
         stringRedisTemplate.opsForValue().multiSet(map);
     }
 
     /**
      * 获取多个键的值
      *
+     * [本地缓存命中的key不再访问redis，只对未命中的key发送一次MGET]
+     *
      * @param list 传入List<KEY>形式的集合，会批量获取
      * @return 返回List<String>结果集
      */
     public List<String> multiGetForValue(List<String> list)
     {
-        return stringRedisTemplate.opsForValue().multiGet(list);
+        List<String> values = new ArrayList<>(Collections.nCopies(list.size(), null));
+        List<String> missKeys = new ArrayList<>();
+        List<Integer> missIndexes = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++)
+        {
+            String key = list.get(i);
+            String cached = nearCache.isEnabled(key) ? (String) nearCache.getIfPresent(RedisNearCache.KIND_STRING, key) : null;
+            if (null != cached)
+            {
+                values.set(i, cached);
+                continue;
+            }
+            missKeys.add(key);
+            missIndexes.add(i);
+        }
+        if (missKeys.isEmpty())
+        {
+            return values;
+        }
+        List<Object> stamps = new ArrayList<>(missKeys.size());
+        for (String key : missKeys)
+        {
+            stamps.add(nearCache.beginLoad(RedisNearCache.KIND_STRING, key));
+        }
+        List<String> loaded = null;
+        try
+        {
+            loaded = stringRedisTemplate.opsForValue().multiGet(missKeys);
+        }
+        finally
+        {
+            for (int i = 0; i < missKeys.size(); i++)
+            {
+                String value = null == loaded ? null : loaded.get(i);
+                values.set(missIndexes.get(i), value);
+                nearCache.put(RedisNearCache.KIND_STRING, missKeys.get(i), value, stamps.get(i));
+            }
+        }
+        if (null == loaded)
+        {
+            return missKeys.size() == list.size() ? null : values;
+        }
+        return values;
     }
 
     /**
      * 根据Key获取对应的值
-     * [支持模糊查询，使用通配符 * ?  []]
-     * *:表示不限制个数；?:限制字符的个数;[a,b] 表示只能查到中括号里面的字符
+     * [key按原样精确匹配，不支持通配符；按模式查找key使用{@link #scanKeys}]
+     * [key匹配本地缓存前缀时优先读本地缓存]
      *
      * @param key 键
      * @return 返回结果字符串
      */
     public String getForValue(String key)
     {
-        return stringRedisTemplate.opsForValue().get(key);
+        return nearCache.get(RedisNearCache.KIND_STRING, key, () -> stringRedisTemplate.opsForValue().get(key));
     }
 
     /**
@@ -461,4 +546,463 @@ public class RedisHelper
         }
         return null;
     }
+
+    /**
+     * 批量操作
+     * 【在回调中登记String/List操作，通过pipeline一次往返发送，返回按登记顺序排列的结果；
+     * 登记方法返回的{@link RedisBatch.Result}也可以在执行完成后取得各自带类型的结果；
+     * 操作数超过{@link #PIPELINE_CHUNK_SIZE}时自动拆分为多个pipeline依次执行】
+     *
+     * @param batchConsumer 登记批量操作，例如 batch -> keys.forEach(key -> batch.getForValue(key))
+     * @return 按登记顺序排列的结果
+     */
+    public List<Object> pipelined(Consumer<RedisBatch> batchConsumer)
+    {
+        RedisBatch batch = new RedisBatch(stringRedisTemplate.getStringSerializer(),
+                redisTemplate.getKeySerializer(), redisTemplate.getValueSerializer());
+        batchConsumer.accept(batch);
+        //执行前后各失效一次：执行后的失效覆盖执行期间其他线程读到旧值并写入本地缓存的情况
+        batch.getWrittenKeys().forEach(nearCache::invalidate);
+
+        List<RedisBatch.Operation<?>> operations = batch.getOperations();
+        List<Object> results = new ArrayList<>(operations.size());
+        for (int from = 0; from < operations.size(); from += PIPELINE_CHUNK_SIZE)
+        {
+            List<RedisBatch.Operation<?>> chunk = operations.subList(from, Math.min(from + PIPELINE_CHUNK_SIZE, operations.size()));
+            //不指定结果序列化器，返回原始结果，由各操作自行解码
+            List<Object> rawResults = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                chunk.forEach(operation -> operation.execute(connection));
+                return null;
+            }, null);
+            for (int i = 0; i < chunk.size(); i++)
+            {
+                results.add(chunk.get(i).complete(rawResults.get(i)));
+            }
+        }
+        batch.getWrittenKeys().forEach(nearCache::invalidate);
+        return results;
+    }
+
+    /**
+     * 按模式遍历key
+     * 【基于SCAN游标惰性获取，不会像KEYS一样阻塞redis；同一个key可能返回多次，遍历期间新增的key不保证返回；
+     * 返回的Stream占用一个连接，使用完必须关闭，建议 try (Stream<String> keys = scanKeys(...)) {...}】
+     *
+     * @param pattern 匹配模式，支持通配符 * ? []
+     * @param count   每次SCAN的建议数量
+     * @return key的惰性Stream
+     */
+    public Stream<String> scanKeys(String pattern, long count)
+    {
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(count).build();
+        Cursor<byte[]> cursor = stringRedisTemplate.executeWithStickyConnection(connection -> connection.scan(options));
+        Spliterator<String> spliterator = Spliterators.spliteratorUnknownSize(new Iterator<String>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public String next()
+            {
+                return stringRedisTemplate.getStringSerializer().deserialize(cursor.next());
+            }
+        }, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try
+            {
+                cursor.close();
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException("close redis scan cursor failed", e);
+            }
+        });
+    }
+
+    /**
+     * 按模式分批遍历key
+     * 【每批最多batchSize个key，内存占用与匹配的key总数无关；同样需要关闭返回的Stream】
+     *
+     * @param pattern   匹配模式
+     * @param count     每次SCAN的建议数量
+     * @param batchSize 每批的key数量
+     */
+    public Stream<List<String>> scanKeyBatches(String pattern, long count, int batchSize)
+    {
+        Stream<String> keys = scanKeys(pattern, count);
+        Iterator<String> keyIterator = keys.iterator();
+        Spliterator<List<String>> spliterator = Spliterators.spliteratorUnknownSize(new Iterator<List<String>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return keyIterator.hasNext();
+            }
+
+            @Override
+            public List<String> next()
+            {
+                if (!keyIterator.hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                List<String> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && keyIterator.hasNext())
+                {
+                    batch.add(keyIterator.next());
+                }
+                return batch;
+            }
+        }, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(keys::close);
+    }
+
+    /**
+     * 按模式删除key
+     * 【SCAN分批后用UNLINK删除，value在redis后台线程释放，不阻塞redis】
+     *
+     * @param pattern 匹配模式
+     * @param count   每次SCAN的建议数量，同时作为每次UNLINK的key数量
+     * @return 删除的key数量
+     */
+    public long unlinkKeys(String pattern, long count)
+    {
+        long removed = 0L;
+        try (Stream<List<String>> batches = scanKeyBatches(pattern, count, (int) Math.min(count, PIPELINE_CHUNK_SIZE)))
+        {
+            Iterator<List<String>> iterator = batches.iterator();
+            while (iterator.hasNext())
+            {
+                List<String> batch = iterator.next();
+                batch.forEach(nearCache::invalidate);
+                Long unlinked = stringRedisTemplate.unlink(batch);
+                removed += null == unlinked ? 0L : unlinked;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 批量获取key的失效时间
+     * 【通过pipeline一次往返，可与{@link #scanKeyBatches}配合遍历】
+     *
+     * @param keys 键
+     * @return key到失效时间（单位：秒）的映射，-1表示永不过期，-2表示不存在
+     */
+    public Map<String, Long> getExpireForKeys(List<String> keys)
+    {
+        Map<String, Long> expires = new LinkedHashMap<>(keys.size() * 2);
+        List<Object> results = pipelined(batch -> keys.forEach(batch::getExpireForValue));
+        for (int i = 0; i < keys.size(); i++)
+        {
+            expires.put(keys.get(i), (Long) results.get(i));
+        }
+        return expires;
+    }
+
+    /**
+     * 批量获取key的数据类型
+     * 【通过pipeline一次往返，可与{@link #scanKeyBatches}配合遍历】
+     *
+     * @param keys 键
+     * @return key到数据类型的映射，不存在的key为NONE
+     */
+    public Map<String, DataType> typeForKeys(List<String> keys)
+    {
+        Map<String, DataType> types = new LinkedHashMap<>(keys.size() * 2);
+        List<Object> results = pipelined(batch -> keys.forEach(batch::typeForValue));
+        for (int i = 0; i < keys.size(); i++)
+        {
+            types.put(keys.get(i), (DataType) results.get(i));
+        }
+        return types;
+    }
+
+    /**
+     * Redis的Hash数据结构
+     * 【设置单个字段】
+     *
+     * @param key   键
+     * @param field 字段
+     * @param value 值
+     */
+    public void putForHash(String key, String field, String value)
+    {
+        stringRedisTemplate.opsForHash().put(key, field, value);
+    }
+
+    /**
+     * 批量设置多个字段(HMSET)，一次往返
+     *
+     * @param key    键
+     * @param fields <字段，值>形式的map
+     */
+    public void putAllForHash(String key, Map<String, String> fields)
+    {
+        stringRedisTemplate.opsForHash().putAll(key, fields);
+    }
+
+    /**
+     * 获取单个字段的值
+     *
+     * @param key   键
+     * @param field 字段
+     * @return 字段不存在时返回null
+     */
+    public String getForHash(String key, String field)
+    {
+        Object o = stringRedisTemplate.opsForHash().get(key, field);
+        return null == o ? null : o.toString();
+    }
+
+    /**
+     * 批量获取多个字段的值(HMGET)，一次往返
+     *
+     * @param key    键
+     * @param fields 字段
+     * @return 与字段顺序一致的值，不存在的字段对应null
+     */
+    public List<String> multiGetForHash(String key, List<String> fields)
+    {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(key, new ArrayList<Object>(fields));
+        return values.stream().map(o -> null == o ? null : o.toString()).collect(Collectors.toList());
+    }
+
+    /**
+     * 获取所有字段与值
+     * [字段很多的大hash会阻塞redis，应只用于小对象]
+     *
+     * @param key 键
+     */
+    public Map<String, String> entriesForHash(String key)
+    {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(key);
+        Map<String, String> result = new LinkedHashMap<>(entries.size() * 2);
+        entries.forEach((field, value) -> result.put(field.toString(), value.toString()));
+        return result;
+    }
+
+    /**
+     * 删除字段
+     *
+     * @param key    键
+     * @param fields 字段
+     * @return 删除的字段数
+     */
+    public Long removeForHash(String key, String... fields)
+    {
+        return stringRedisTemplate.opsForHash().delete(key, (Object[]) fields);
+    }
+
+    /**
+     * 获取字段数
+     */
+    public Long sizeForHash(String key)
+    {
+        return stringRedisTemplate.opsForHash().size(key);
+    }
+
+    /**
+     * 字段值增加delta(HINCRBY)，字段不存在时从0开始
+     *
+     * @return 增加后的值
+     */
+    public Long incrementForHash(String key, String field, long delta)
+    {
+        return stringRedisTemplate.opsForHash().increment(key, field, delta);
+    }
+
+    /**
+     * 批量增加多个hash的多个字段(HINCRBY)，所有命令通过pipeline发送
+     * 【适合按租户聚合的计数器：每个租户一个hash，每个计数器一个字段】
+     *
+     * @param deltas <键，<字段，增量>>形式的map
+     * @return 与deltas结构一致的增加后的值
+     */
+    public Map<String, Map<String, Long>> incrementAllForHash(Map<String, Map<String, Long>> deltas)
+    {
+        List<Object> results = pipelined(batch -> deltas.forEach((key, fields) ->
+                fields.forEach((field, delta) -> batch.incrementForHash(key, field, delta))));
+        Map<String, Map<String, Long>> values = new LinkedHashMap<>(deltas.size() * 2);
+        int index = 0;
+        for (Map.Entry<String, Map<String, Long>> entry : deltas.entrySet())
+        {
+            Map<String, Long> fieldValues = new LinkedHashMap<>(entry.getValue().size() * 2);
+            for (String field : entry.getValue().keySet())
+            {
+                fieldValues.put(field, (Long) results.get(index++));
+            }
+            values.put(entry.getKey(), fieldValues);
+        }
+        return values;
+    }
+
+    /**
+     * Redis的Set数据结构
+     * 【添加成员，一次往返】
+     *
+     * @return 新增的成员数
+     */
+    public Long addForSet(String key, String... values)
+    {
+        return stringRedisTemplate.opsForSet().add(key, values);
+    }
+
+    /**
+     * 删除成员
+     *
+     * @return 删除的成员数
+     */
+    public Long removeForSet(String key, String... values)
+    {
+        return stringRedisTemplate.opsForSet().remove(key, (Object[]) values);
+    }
+
+    /**
+     * 获取所有成员
+     * [成员很多的大集合会阻塞redis，应只用于小集合]
+     */
+    public Set<String> membersForSet(String key)
+    {
+        return stringRedisTemplate.opsForSet().members(key);
+    }
+
+    public Boolean isMemberForSet(String key, String value)
+    {
+        return stringRedisTemplate.opsForSet().isMember(key, value);
+    }
+
+    public Long sizeForSet(String key)
+    {
+        return stringRedisTemplate.opsForSet().size(key);
+    }
+
+    /**
+     * Redis的ZSet数据结构
+     * 【添加成员，已存在时更新分数】
+     *
+     * @return 是否为新增成员
+     */
+    public Boolean addForZSet(String key, String value, double score)
+    {
+        return stringRedisTemplate.opsForZSet().add(key, value, score);
+    }
+
+    /**
+     * 批量添加成员(ZADD多个成员)，一次往返
+     *
+     * @param members <成员，分数>形式的map
+     * @return 新增的成员数
+     */
+    public Long addAllForZSet(String key, Map<String, Double> members)
+    {
+        Set<ZSetOperations.TypedTuple<String>> tuples = members.entrySet().stream()
+                .map(entry -> new DefaultTypedTuple<>(entry.getKey(), entry.getValue()))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        return stringRedisTemplate.opsForZSet().add(key, tuples);
+    }
+
+    public Long removeForZSet(String key, String... values)
+    {
+        return stringRedisTemplate.opsForZSet().remove(key, (Object[]) values);
+    }
+
+    public Double scoreForZSet(String key, String value)
+    {
+        return stringRedisTemplate.opsForZSet().score(key, value);
+    }
+
+    /**
+     * 成员分数增加delta，成员不存在时从0开始
+     *
+     * @return 增加后的分数
+     */
+    public Double incrementScoreForZSet(String key, String value, double delta)
+    {
+        return stringRedisTemplate.opsForZSet().incrementScore(key, value, delta);
+    }
+
+    public Long sizeForZSet(String key)
+    {
+        return stringRedisTemplate.opsForZSet().zCard(key);
+    }
+
+    /**
+     * 获取分数在[min,max]之间的一页成员(ZRANGEBYSCORE ... WITHSCORES LIMIT)，按分数升序
+     *
+     * @param offset 跳过的成员数
+     * @param count  本页的成员数
+     */
+    public Set<ZSetOperations.TypedTuple<String>> rangeByScoreForZSet(String key, double min, double max, long offset, long count)
+    {
+        return stringRedisTemplate.opsForZSet().rangeByScoreWithScores(key, min, max, offset, count);
+    }
+
+    /**
+     * 惰性遍历分数在[min,max]之间的成员，按分数升序
+     * 【每次取pageSize个，消费完一页再取下一页，内存占用只与pageSize有关；
+     * 下一页从上一页最后一个成员的分数开始取，只跳过该分数上已返回的成员，不使用递增的offset，
+     * 每页的代价与已遍历的成员数无关；遍历期间有成员增删时可能重复或遗漏成员】
+     *
+     * @param pageSize 每页的成员数
+     */
+    public Stream<ZSetOperations.TypedTuple<String>> streamByScoreForZSet(String key, double min, double max, int pageSize)
+    {
+        Iterator<ZSetOperations.TypedTuple<String>> iterator = new Iterator<ZSetOperations.TypedTuple<String>>()
+        {
+            private Iterator<ZSetOperations.TypedTuple<String>> page = Collections.emptyIterator();
+
+            private double cursor = min;
+
+            /**
+             * 分数等于cursor且已返回的成员数
+             */
+            private long ties;
+
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (!page.hasNext() && !exhausted)
+                {
+                    Set<ZSetOperations.TypedTuple<String>> tuples = rangeByScoreForZSet(key, cursor, max, ties, pageSize);
+                    int size = null == tuples ? 0 : tuples.size();
+                    exhausted = size < pageSize;
+                    page = null == tuples ? Collections.emptyIterator() : tuples.iterator();
+                    if (null != tuples)
+                    {
+                        for (ZSetOperations.TypedTuple<String> tuple : tuples)
+                        {
+                            double score = null == tuple.getScore() ? cursor : tuple.getScore();
+                            if (Double.compare(score, cursor) == 0)
+                            {
+                                ties++;
+                            }
+                            else
+                            {
+                                cursor = score;
+                                ties = 1;
+                            }
+                        }
+                    }
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public ZSetOperations.TypedTuple<String> next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
 }
@@ -18,14 +18,30 @@ import java.lang.annotation.Target;
 public @interface DistributedLock {
 
     /**
-     * 锁key
+     * 锁key，支持SpEL引用方法参数，如 "'waf:sync:' + #userId + ':' + #domainId"；
+     * 不同参数得到不同的key，互不阻塞；与lockKeys都为空时使用 distributed-lock:方法名
      * @return
      */
-    String lockKey();
+    String lockKey() default "";
+
+    /**
+     * 同时获取的多个锁key，一次lua脚本往返全部获取或全部不获取，按key排序加锁，与lockKey同时配置时一起加锁；
+     * 支持SpEL，表达式结果为集合或数组时展开为多个key，如 "'waf:domain:' + #domainId", "#subDomainKeys"；
+     * 多key锁不支持fair，同时配置时抛出IllegalArgumentException
+     * @return
+     */
+    String[] lockKeys() default {};
 
     /**
      * 尝试获取锁时间（单位：秒）
      * @return
      */
     long tryLockTime() default 0;
+
+    /**
+     * 是否公平锁：按到达顺序排队，等待解锁通知而不是轮询redis；
+     * 方法返回CompletableFuture时等待锁期间不占用线程，锁在返回的future完成后释放
+     * @return
+     */
+    boolean fair() default false;
 }
@@ -1,16 +1,33 @@
 package com.inspur.bss.waf.common.aspect;
 
 import com.inspur.bss.waf.common.annotation.DistributedLock;
+import com.inspur.bss.waf.redis.lock.DistributedLockMetrics;
 import com.inspur.bss.waf.redis.lock.RedisDistributedLock;
+import com.inspur.bss.waf.redis.lock.RedisFairLock;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.aop.support.AopUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 分布式锁切面
  *
@@ -25,8 +42,23 @@ public class DistributedLockAspect {
     @Autowired
     private RedisDistributedLock distributedLock;
 
+    @Autowired
+    private RedisFairLock fairLock;
+
+    @Autowired
+    private DistributedLockMetrics lockMetrics;
+
+    /**
+     * 异步公平锁获取成功后执行被锁方法的线程池，没有时使用ForkJoinPool.commonPool()
+     */
+    @Autowired(required = false)
+    @Qualifier("applicationTaskExecutor")
+    private Executor applicationTaskExecutor;
+
     private static final String DEFAULT_LOCK_KEY = "distributed-lock";
 
+    private final LockKeyExpressionEvaluator lockKeyEvaluator = new LockKeyExpressionEvaluator();
+
     @Pointcut("@annotation(com.inspur.bss.waf.common.annotation.DistributedLock)")
     public void pointCut(){}
 
@@ -36,23 +68,196 @@ public class DistributedLockAspect {
         String lockKey = lockAnnotaion.lockKey();
         long tryLockTime = lockAnnotaion.tryLockTime();
 
-        lockKey = StringUtils.isEmpty(lockKey) ? DEFAULT_LOCK_KEY + ":" + joinPoint.getSignature().getName() : lockKey;
+        //多key锁在aroundMulti中统一求值，这里不再对lockKey求值
+        if (lockAnnotaion.lockKeys().length > 0) {
+            if (lockAnnotaion.fair()) {
+                throw new IllegalArgumentException("@DistributedLock does not support fair with lockKeys: "
+                        + joinPoint.getSignature().toShortString());
+            }
+            return aroundMulti(joinPoint, lockAnnotaion, tryLockTime);
+        }
+        //指标按注解上的锁名统计，不按求值后的key
+        String lockName = StringUtils.isEmpty(lockKey) ? DEFAULT_LOCK_KEY + ":" + joinPoint.getSignature().getName() : lockKey;
+        lockKey = StringUtils.isEmpty(lockKey) ? lockName : resolveLockKey(joinPoint, lockKey);
+        if (lockAnnotaion.fair()) {
+            return aroundFair(joinPoint, lockName, lockKey, tryLockTime);
+        }
         boolean isLock = false;
+        long startNanos = lockMetrics.beginAcquire(lockName);
+        long acquiredNanos = 0L;
         try {
-            log.info("尝试获取redis锁{},currentThread:{}",lockKey,Thread.currentThread().getName());
+            if (log.isDebugEnabled()) {
+                log.debug("尝试获取redis锁{},currentThread:{}",lockKey,Thread.currentThread().getName());
+            }
             isLock = distributedLock.tryLock(lockKey, tryLockTime);
             if(isLock){
-                log.info("获取redis锁{}成功,currentThread:{}",lockKey,Thread.currentThread().getName());
+                acquiredNanos = lockMetrics.acquired(lockName, startNanos);
+                if (log.isDebugEnabled()) {
+                    log.debug("获取redis锁{}成功,currentThread:{}",lockKey,Thread.currentThread().getName());
+                }
                 return joinPoint.proceed(joinPoint.getArgs());
             }
-            log.info("获取redis锁{}失败,currentThread:{}",lockKey,Thread.currentThread().getName());
+            lockMetrics.timedOut(lockName, startNanos);
+            if (log.isDebugEnabled()) {
+                log.debug("获取redis锁{}失败,currentThread:{}",lockKey,Thread.currentThread().getName());
+            }
         } catch (InterruptedException e) {
+            if (!isLock) {
+                lockMetrics.failed(lockName, startNanos);
+            }
             log.error("获取redis锁{}异常,currentThread:{}",lockKey,Thread.currentThread().getName(),e);
+        } catch (RuntimeException e) {
+            if (!isLock) {
+                lockMetrics.failed(lockName, startNanos);
+            }
+            throw e;
         }finally {
             if(isLock){
                 distributedLock.unlock(lockKey);
+                lockMetrics.released(lockName, acquiredNanos);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 多key锁：lockKey与lockKeys一起全部获取或全部不获取
+     */
+    private Object aroundMulti(ProceedingJoinPoint joinPoint, DistributedLock lockAnnotaion, long tryLockTime) throws Throwable {
+        List<String> templates = new ArrayList<>(Arrays.asList(lockAnnotaion.lockKeys()));
+        if (!StringUtils.isEmpty(lockAnnotaion.lockKey())) {
+            templates.add(0, lockAnnotaion.lockKey());
+        }
+        String lockName = String.join(",", templates);
+        Set<String> lockKeys = new TreeSet<>();
+        for (String template : templates) {
+            resolveLockKeys(joinPoint, template, lockKeys);
+        }
+        String token = null;
+        long startNanos = lockMetrics.beginAcquire(lockName);
+        long acquiredNanos = 0L;
+        try {
+            token = distributedLock.tryLockAll(lockKeys, tryLockTime);
+            if (token != null) {
+                acquiredNanos = lockMetrics.acquired(lockName, startNanos);
+                return joinPoint.proceed(joinPoint.getArgs());
+            }
+            lockMetrics.timedOut(lockName, startNanos);
+            if (log.isDebugEnabled()) {
+                log.debug("获取redis锁{}失败,currentThread:{}",lockKeys,Thread.currentThread().getName());
+            }
+        } catch (InterruptedException e) {
+            if (token == null) {
+                lockMetrics.failed(lockName, startNanos);
+            }
+            log.error("获取redis锁{}异常,currentThread:{}",lockKeys,Thread.currentThread().getName(),e);
+        } catch (RuntimeException e) {
+            if (token == null) {
+                lockMetrics.failed(lockName, startNanos);
+            }
+            throw e;
+        } finally {
+            if (token != null) {
+                distributedLock.unlockAll(lockKeys, token);
+                lockMetrics.released(lockName, acquiredNanos);
             }
         }
         return null;
     }
+
+    private void resolveLockKeys(ProceedingJoinPoint joinPoint, String lockKey, Collection<String> lockKeys) {
+        if (!LockKeyExpressionEvaluator.isExpression(lockKey)) {
+            lockKeys.add(lockKey);
+            return;
+        }
+        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
+        Class<?> targetClass = joinPoint.getTarget() == null ? signature.getDeclaringType() : AopUtils.getTargetClass(joinPoint.getTarget());
+        Method method = AopUtils.getMostSpecificMethod(signature.getMethod(), targetClass);
+        lockKeyEvaluator.evaluateKeys(lockKey, method, targetClass, joinPoint.getArgs(), lockKeys);
+    }
+
+    /**
+     * 解析lockKey：SpEL表达式按调用参数求值，否则原样返回
+     */
+    private String resolveLockKey(ProceedingJoinPoint joinPoint, String lockKey) {
+        if (!LockKeyExpressionEvaluator.isExpression(lockKey)) {
+            return lockKey;
+        }
+        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
+        Class<?> targetClass = joinPoint.getTarget() == null ? signature.getDeclaringType() : AopUtils.getTargetClass(joinPoint.getTarget());
+        Method method = AopUtils.getMostSpecificMethod(signature.getMethod(), targetClass);
+        return lockKeyEvaluator.evaluate(lockKey, method, targetClass, joinPoint.getArgs());
+    }
+
+    /**
+     * 公平锁：方法返回CompletableFuture时异步等待锁，否则阻塞等待(不轮询redis)
+     */
+    @SuppressWarnings("unchecked")
+    private Object aroundFair(ProceedingJoinPoint joinPoint, String lockName, String lockKey, long tryLockTime) throws Throwable {
+        long startNanos = lockMetrics.beginAcquire(lockName);
+        CompletableFuture<String> acquired = fairLock.acquireAsync(lockKey, tryLockTime, TimeUnit.SECONDS);
+        Class<?> returnType = ((MethodSignature) joinPoint.getSignature()).getReturnType();
+        if (CompletableFuture.class.isAssignableFrom(returnType)) {
+            //不在redis-fair-lock调度线程上执行被锁方法，避免阻塞其他等待者的通知与超时处理
+            return acquired.thenComposeAsync(token -> {
+                if (token == null) {
+                    lockMetrics.timedOut(lockName, startNanos);
+                    if (log.isDebugEnabled()) {
+                        log.debug("获取redis公平锁{}失败", lockKey);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                }
+                long acquiredNanos = lockMetrics.acquired(lockName, startNanos);
+                CompletableFuture<Object> result;
+                try {
+                    result = (CompletableFuture<Object>) joinPoint.proceed(joinPoint.getArgs());
+                } catch (Throwable e) {
+                    releaseFair(lockName, lockKey, token, acquiredNanos);
+                    CompletableFuture<Object> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                }
+                if (result == null) {
+                    releaseFair(lockName, lockKey, token, acquiredNanos);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return result.whenComplete((value, e) -> releaseFair(lockName, lockKey, token, acquiredNanos));
+            }, callbackExecutor());
+        }
+        String token;
+        try {
+            token = acquired.get();
+        } catch (InterruptedException e) {
+            lockMetrics.failed(lockName, startNanos);
+            //中断后锁可能仍在稍后获取成功，获取成功时立即释放
+            acquired.thenAccept(lateToken -> {
+                if (lateToken != null) {
+                    fairLock.release(lockKey, lateToken);
+                }
+            });
+            throw e;
+        }
+        if (token == null) {
+            lockMetrics.timedOut(lockName, startNanos);
+            if (log.isDebugEnabled()) {
+                log.debug("获取redis公平锁{}失败,currentThread:{}",lockKey,Thread.currentThread().getName());
+            }
+            return null;
+        }
+        long acquiredNanos = lockMetrics.acquired(lockName, startNanos);
+        try {
+            return joinPoint.proceed(joinPoint.getArgs());
+        } finally {
+            releaseFair(lockName, lockKey, token, acquiredNanos);
+        }
+    }
+
+    private Executor callbackExecutor() {
+        return applicationTaskExecutor == null ? ForkJoinPool.commonPool() : applicationTaskExecutor;
+    }
+
+    private void releaseFair(String lockName, String lockKey, String token, long acquiredNanos) {
+        fairLock.release(lockKey, token);
+        lockMetrics.released(lockName, acquiredNanos);
+    }
 }
@@ -0,0 +1,64 @@
+package com.inspur.bss.waf.common.aspect;
+
+import org.springframework.context.expression.AnnotatedElementKey;
+import org.springframework.context.expression.CachedExpressionEvaluator;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.util.CollectionUtils;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 分布式锁key的SpEL解析
+ * 【包含#的lockKey按SpEL求值，可以引用方法参数，如 #userId + ':' + #domainId；
+ * 表达式按方法与表达式文本缓存，每个方法只解析一次；不含#的lockKey按原样使用】
+ *
+ * @author hexinyu
+ */
+class LockKeyExpressionEvaluator extends CachedExpressionEvaluator {
+
+    private static final String EXPRESSION_MARKER = "#";
+
+    private final Map<ExpressionKey, Expression> expressionCache = new ConcurrentHashMap<>(64);
+
+    static boolean isExpression(String lockKey) {
+        return lockKey.contains(EXPRESSION_MARKER);
+    }
+
+    /**
+     * 求值lockKey表达式
+     *
+     * @param lockKey     表达式
+     * @param method      被拦截的方法
+     * @param targetClass 目标类
+     * @param args        调用参数
+     * @return 求值结果，为null时返回"null"
+     */
+    String evaluate(String lockKey, Method method, Class<?> targetClass, Object[] args) {
+        return String.valueOf(evaluateValue(lockKey, method, targetClass, args));
+    }
+
+    /**
+     * 求值多key锁的表达式，结果为集合或数组时展开为多个key
+     */
+    void evaluateKeys(String lockKey, Method method, Class<?> targetClass, Object[] args, Collection<String> keys) {
+        Object value = evaluateValue(lockKey, method, targetClass, args);
+        if (value instanceof Collection) {
+            ((Collection<?>) value).forEach(item -> keys.add(String.valueOf(item)));
+        } else if (value != null && value.getClass().isArray()) {
+            CollectionUtils.arrayToList(value).forEach(item -> keys.add(String.valueOf(item)));
+        } else {
+            keys.add(String.valueOf(value));
+        }
+    }
+
+    private Object evaluateValue(String lockKey, Method method, Class<?> targetClass, Object[] args) {
+        AnnotatedElementKey elementKey = new AnnotatedElementKey(method, targetClass);
+        EvaluationContext context = new MethodBasedEvaluationContext(null, method, args, getParameterNameDiscoverer());
+        return getExpression(expressionCache, elementKey, lockKey).getValue(context);
+    }
+}
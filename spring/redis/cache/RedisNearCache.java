@@ -0,0 +1,451 @@
+package com.inspur.bss.waf.redis.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * RedisHelper读操作的进程内一级缓存
+ * 【只对配置的key前缀生效(waf.redis.near-cache.prefixes，逗号分隔，为空则关闭)；
+ * 按条数(随机抽样近似LRU)与TTL淘汰，读取不加锁，写入与失效只锁很短的结构变更；通过订阅keyspace通知使其他节点的修改失效本地缓存，
+ * 需要redis开启 notify-keyspace-events，至少包含 Kg$lx(如 "Kg$lxe")；
+ * TTL是通知丢失(如订阅断线)时的兜底】
+ */
+@Slf4j
+@Component
+public class RedisNearCache implements MessageListener
+{
+    private static final String KEYSPACE_CHANNEL_PREFIX = "__keyspace@";
+
+    private static final String KEYSPACE_CHANNEL_SEPARATOR = "__:";
+
+    /**
+     * 值的类型：同一个key按字符串或对象序列化方式读取时分开缓存
+     */
+    public static final String KIND_STRING = "string";
+
+    public static final String KIND_OBJECT = "object";
+
+    private static final String[] KINDS = {KIND_STRING, KIND_OBJECT};
+
+    /**
+     * 超过容量时抽样的条目数，淘汰其中最久未访问的(近似LRU)
+     */
+    private static final int EVICTION_SAMPLES = 8;
+
+    @Value("${waf.redis.near-cache.prefixes:}")
+    private String prefixesConfig;
+
+    @Value("${waf.redis.near-cache.max-size:10000}")
+    private int maxSize;
+
+    @Value("${waf.redis.near-cache.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    private List<String> prefixes = Collections.emptyList();
+
+    private final ConcurrentHashMap<CacheKey, CacheEntry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 正在从redis读取的key及其标记：失效时删除该key的标记，读取完成时标记已不在说明期间发生过失效，结果不写入缓存；
+     * 只影响被失效的key，其他key的读取不受影响
+     */
+    private final ConcurrentHashMap<CacheKey, Object> loading = new ConcurrentHashMap<>();
+
+    /**
+     * 保护entries的结构变更(新增/删除)与keys数组，命中读取不加锁
+     */
+    private final Object structureLock = new Object();
+
+    /**
+     * entries中所有key的紧凑数组，用于淘汰时随机抽样，下标记录在CacheEntry.slot
+     */
+    private CacheKey[] keys = new CacheKey[16];
+
+    private int keyCount;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    @PostConstruct
+    public void init()
+    {
+        prefixes = Arrays.asList(StringUtils.commaDelimitedListToStringArray(StringUtils.trimAllWhitespace(prefixesConfig)));
+        for (String prefix : prefixes)
+        {
+            listenerContainer.addMessageListener(this, new PatternTopic(KEYSPACE_CHANNEL_PREFIX + "*" + KEYSPACE_CHANNEL_SEPARATOR + prefix + "*"));
+        }
+        if (!prefixes.isEmpty())
+        {
+            log.info("redis near cache enabled for prefixes {}", prefixes);
+        }
+    }
+
+    /**
+     * 判断key是否启用本地缓存
+     *
+     * @param key 键
+     */
+    public boolean isEnabled(String key)
+    {
+        if (null == key)
+        {
+            return false;
+        }
+        for (String prefix : prefixes)
+        {
+            if (key.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 读取缓存，未命中时调用loader从redis读取并缓存，null值不缓存
+     *
+     * @param kind   值的类型，{@link #KIND_STRING}或{@link #KIND_OBJECT}
+     * @param key    键
+     * @param loader 从redis读取
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String kind, String key, Supplier<T> loader)
+    {
+        if (!isEnabled(key))
+        {
+            return loader.get();
+        }
+        CacheKey cacheKey = new CacheKey(kind, key);
+        T cached = (T) getIfPresent(cacheKey);
+        if (null != cached)
+        {
+            return cached;
+        }
+        Object stamp = beginLoad(cacheKey);
+        T value;
+        try
+        {
+            value = loader.get();
+        }
+        catch (RuntimeException e)
+        {
+            loading.remove(cacheKey, stamp);
+            throw e;
+        }
+        put(cacheKey, value, stamp);
+        return value;
+    }
+
+    /**
+     * 读取缓存，未命中或已过期返回null并计入未命中
+     */
+    public Object getIfPresent(String kind, String key)
+    {
+        return getIfPresent(new CacheKey(kind, key));
+    }
+
+    /**
+     * 开始从redis读取key，在读取之前调用，返回的标记在读取完成后传给{@link #put(String, String, Object, Object)}
+     *
+     * @return 未启用本地缓存的key返回null
+     */
+    public Object beginLoad(String kind, String key)
+    {
+        return isEnabled(key) ? beginLoad(new CacheKey(kind, key)) : null;
+    }
+
+    /**
+     * 写入缓存，读取期间该key发生过失效则放弃写入；value为null时只结束本次读取
+     *
+     * @param stamp {@link #beginLoad}返回的标记
+     */
+    public void put(String kind, String key, Object value, Object stamp)
+    {
+        if (null != stamp)
+        {
+            put(new CacheKey(kind, key), value, stamp);
+        }
+    }
+
+    /**
+     * 使key的所有类型的缓存失效
+     *
+     * @param key 键
+     */
+    public void invalidate(String key)
+    {
+        if (!isEnabled(key))
+        {
+            return;
+        }
+        invalidations.increment();
+        synchronized (structureLock)
+        {
+            for (String kind : KINDS)
+            {
+                CacheKey cacheKey = new CacheKey(kind, key);
+                loading.remove(cacheKey);
+                unlink(cacheKey, null);
+            }
+        }
+    }
+
+    public void invalidateAll()
+    {
+        synchronized (structureLock)
+        {
+            loading.clear();
+            entries.clear();
+            Arrays.fill(keys, 0, keyCount, null);
+            keyCount = 0;
+        }
+    }
+
+    /**
+     * keyspace通知: channel为 __keyspace@{db}__:{key}
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern)
+    {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        int index = channel.indexOf(KEYSPACE_CHANNEL_SEPARATOR);
+        if (index > 0)
+        {
+            invalidate(channel.substring(index + KEYSPACE_CHANNEL_SEPARATOR.length()));
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    public long getInvalidationCount()
+    {
+        return invalidations.sum();
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    private Object getIfPresent(CacheKey cacheKey)
+    {
+        CacheEntry entry = entries.get(cacheKey);
+        long now = System.nanoTime();
+        if (null != entry && entry.expireAt > now)
+        {
+            entry.lastAccess = now;
+            hits.increment();
+            return entry.value;
+        }
+        if (null != entry)
+        {
+            synchronized (structureLock)
+            {
+                if (unlink(cacheKey, entry))
+                {
+                    evictions.increment();
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    private Object beginLoad(CacheKey cacheKey)
+    {
+        Object stamp = new Object();
+        loading.put(cacheKey, stamp);
+        return stamp;
+    }
+
+    private void put(CacheKey cacheKey, Object value, Object stamp)
+    {
+        if (null == value)
+        {
+            loading.remove(cacheKey, stamp);
+            return;
+        }
+        long now = System.nanoTime();
+        CacheEntry entry = new CacheEntry(value, now + TimeUnit.SECONDS.toNanos(ttlSeconds), now);
+        synchronized (structureLock)
+        {
+            //标记已被失效删除(或被之后开始的读取替换)时放弃写入
+            if (!loading.remove(cacheKey, stamp))
+            {
+                return;
+            }
+            store(cacheKey, entry);
+            while (keyCount > maxSize)
+            {
+                evictOne();
+            }
+        }
+    }
+
+    /**
+     * 写入条目并维护keys数组，调用方持有structureLock
+     */
+    private void store(CacheKey cacheKey, CacheEntry entry)
+    {
+        CacheEntry previous = entries.put(cacheKey, entry);
+        if (null != previous)
+        {
+            entry.slot = previous.slot;
+            return;
+        }
+        if (keyCount == keys.length)
+        {
+            keys = Arrays.copyOf(keys, keyCount * 2);
+        }
+        keys[keyCount] = cacheKey;
+        entry.slot = keyCount++;
+    }
+
+    /**
+     * 删除条目，把keys数组末尾的key移到空出的位置，调用方持有structureLock
+     *
+     * @param expected 只删除该条目，为null时删除key当前的条目
+     * @return 是否删除
+     */
+    private boolean unlink(CacheKey cacheKey, CacheEntry expected)
+    {
+        CacheEntry removed;
+        if (null == expected)
+        {
+            removed = entries.remove(cacheKey);
+        }
+        else
+        {
+            removed = entries.remove(cacheKey, expected) ? expected : null;
+        }
+        if (null == removed)
+        {
+            return false;
+        }
+        int last = --keyCount;
+        CacheKey moved = keys[last];
+        keys[last] = null;
+        if (removed.slot != last)
+        {
+            keys[removed.slot] = moved;
+            entries.get(moved).slot = removed.slot;
+        }
+        return true;
+    }
+
+    /**
+     * 随机抽样若干条目，淘汰其中最久未访问的，调用方持有structureLock
+     */
+    private void evictOne()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        CacheKey victim = null;
+        long victimAccess = Long.MAX_VALUE;
+        for (int i = 0; i < EVICTION_SAMPLES && keyCount > 0; i++)
+        {
+            CacheKey candidate = keys[random.nextInt(keyCount)];
+            long lastAccess = entries.get(candidate).lastAccess;
+            if (null == victim || lastAccess < victimAccess)
+            {
+                victim = candidate;
+                victimAccess = lastAccess;
+            }
+        }
+        if (null != victim && unlink(victim, null))
+        {
+            evictions.increment();
+        }
+    }
+
+    private static final class CacheKey
+    {
+        private final String kind;
+
+        private final String key;
+
+        private CacheKey(String kind, String key)
+        {
+            this.kind = kind;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (!(o instanceof CacheKey))
+            {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return kind.equals(other.kind) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * kind.hashCode() + key.hashCode();
+        }
+    }
+
+    private static final class CacheEntry
+    {
+        private final Object value;
+
+        private final long expireAt;
+
+        private volatile long lastAccess;
+
+        /**
+         * 在keys数组中的下标，由structureLock保护
+         */
+        private int slot;
+
+        private CacheEntry(Object value, long expireAt, long lastAccess)
+        {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -1,14 +1,25 @@
 package com.inspur.bss.waf.redis.config;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.jsontype.TypeResolverBuilder;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.inspur.bss.waf.redis.serializer.CompactTypeIdResolver;
+import com.inspur.bss.waf.redis.serializer.VersionedBinaryRedisSerializer;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.integration.redis.util.RedisLockRegistry;
 
@@ -16,30 +27,123 @@ import org.springframework.integration.redis.util.RedisLockRegistry;
  * redis缓存配置类
  */
 @Configuration
+@SuppressWarnings("unchecked")
 public class RedisConfig
 {
+    /**
+     * 值序列化方式：json(默认，兼容旧数据)；binary(带版本头的Smile编码，可读旧的json值)
+     */
+    public static final String SERIALIZER_JSON = "json";
+
+    public static final String SERIALIZER_BINARY = "binary";
+
+    @Value("${waf.redis.serializer:" + SERIALIZER_JSON + "}")
+    private String serializerMode;
+
+    @Value("${waf.redis.serializer.compress-threshold:1024}")
+    private int compressThreshold;
+
+    /**
+     * binary方式下的类型别名，格式 别名=完整类名，逗号分隔，见{@link CompactTypeIdResolver}
+     */
+    @Value("${waf.redis.serializer.type-aliases:}")
+    private String typeAliases;
+
     @Bean
     public RedisTemplate<String, Object> redisTemplate(RedisConnectionFactory redisConnectionFactory)
+    {
+        return createRedisTemplate(redisConnectionFactory, serializerMode);
+    }
+
+    /**
+     * 按指定的序列化方式创建RedisTemplate，不同用途的template可以选用不同的方式
+     * 【binary方式下hash key改用字符串序列化，已有的json格式hash key需要迁移后再切换；
+     * 类型信息使用短别名(未登记别名的类型仍为完整类名)，同一载荷中重复的字符串由Smile共享引用】
+     *
+     * @param redisConnectionFactory 连接工厂
+     * @param mode                   {@link #SERIALIZER_JSON} 或 {@link #SERIALIZER_BINARY}
+     */
+    public RedisTemplate<String, Object> createRedisTemplate(RedisConnectionFactory redisConnectionFactory, String mode)
     {
         Jackson2JsonRedisSerializer<Object> jackson2JsonRedisSerializer = new Jackson2JsonRedisSerializer<Object>(
                 Object.class);
-        ObjectMapper om = new ObjectMapper();
-        om.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
-        om.enableDefaultTyping(ObjectMapper.DefaultTyping.NON_FINAL);
-        jackson2JsonRedisSerializer.setObjectMapper(om);
+        jackson2JsonRedisSerializer.setObjectMapper(configureTyping(new ObjectMapper()));
         RedisTemplate<String, Object> template = new RedisTemplate<String, Object>();
         template.setConnectionFactory(redisConnectionFactory);
         template.setKeySerializer(new StringRedisSerializer());
-        template.setValueSerializer(jackson2JsonRedisSerializer);
-        template.setHashKeySerializer(jackson2JsonRedisSerializer);
-        template.setHashValueSerializer(jackson2JsonRedisSerializer);
+        if (SERIALIZER_BINARY.equalsIgnoreCase(mode))
+        {
+            VersionedBinaryRedisSerializer binarySerializer = new VersionedBinaryRedisSerializer(
+                    createSmileMapper(), jackson2JsonRedisSerializer, compressThreshold);
+            template.setValueSerializer(binarySerializer);
+            template.setHashKeySerializer(new StringRedisSerializer());
+            template.setHashValueSerializer(binarySerializer);
+        }
+        else
+        {
+            template.setValueSerializer(jackson2JsonRedisSerializer);
+            template.setHashKeySerializer(jackson2JsonRedisSerializer);
+            template.setHashValueSerializer(jackson2JsonRedisSerializer);
+        }
         template.afterPropertiesSet();
         return template;
     }
 
+    /**
+     * 非阻塞template，序列化方式与redisTemplate一致，覆盖spring boot默认的(JDK序列化)同名bean
+     */
     @Bean
-    public RedisLockRegistry redisLockRegistry(RedisConnectionFactory redisConnectionFactory,@Value("${spring.application.name}") String registyKey) {
-        return new RedisLockRegistry(redisConnectionFactory, registyKey);
+    public ReactiveRedisTemplate<String, Object> reactiveRedisTemplate(ReactiveRedisConnectionFactory reactiveRedisConnectionFactory,
+                                                                       RedisTemplate<String, Object> redisTemplate)
+    {
+        RedisSerializationContext<String, Object> serializationContext = RedisSerializationContext
+                .<String, Object>newSerializationContext()
+                .key((RedisSerializer<String>) redisTemplate.getKeySerializer())
+                .value((RedisSerializer<Object>) redisTemplate.getValueSerializer())
+                .hashKey(redisTemplate.getHashKeySerializer())
+                .hashValue(redisTemplate.getHashValueSerializer())
+                .build();
+        return new ReactiveRedisTemplate<>(reactiveRedisConnectionFactory, serializationContext);
+    }
+
+    private ObjectMapper createSmileMapper()
+    {
+        SmileFactory smileFactory = new SmileFactory();
+        smileFactory.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+        ObjectMapper om = new ObjectMapper(smileFactory);
+        om.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
+        TypeResolverBuilder<?> typer = new ObjectMapper.DefaultTypeResolverBuilder(ObjectMapper.DefaultTyping.NON_FINAL)
+                .init(JsonTypeInfo.Id.CUSTOM, new CompactTypeIdResolver(typeAliases))
+                .inclusion(JsonTypeInfo.As.WRAPPER_ARRAY);
+        om.setDefaultTyping(typer);
+        return om;
+    }
+
+    private static ObjectMapper configureTyping(ObjectMapper om)
+    {
+        om.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
+        om.enableDefaultTyping(ObjectMapper.DefaultTyping.NON_FINAL);
+        return om;
+    }
+
+    /**
+     * 锁的过期时间由RedisLockWatchdog按1/3周期续期，过期时间即持有进程宕机后锁被释放的最长时间
+     */
+    @Bean
+    public RedisLockRegistry redisLockRegistry(RedisConnectionFactory redisConnectionFactory,@Value("${spring.application.name}") String registyKey,
+                                               @Value("${waf.redis.lock.expire-millis:30000}") long expireAfter) {
+        return new RedisLockRegistry(redisConnectionFactory, registyKey, expireAfter);
+    }
+
+    /**
+     * redis订阅容器，本地缓存通过它接收keyspace失效通知
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory redisConnectionFactory)
+    {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        return container;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,256 @@
+package com.inspur.bss.waf.redis.lock;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 分布式锁指标
+ * 【按锁名(注解上的lockKey，SpEL表达式不求值)统计，避免按参数求值后的key导致指标无限增长；
+ * 存在MeterRegistry时同时注册到Micrometer：distributed.lock.acquire/hold 耗时直方图，
+ * distributed.lock.timeouts/failures 计数，distributed.lock.waiters 当前等待数；
+ * waf.redis.lock.metrics.enabled=false 时各方法直接返回，不取时间也不分配对象】
+ */
+@Component
+public class DistributedLockMetrics
+{
+    private static final String TAG_LOCK = "lock";
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, LockStats> stats = new ConcurrentHashMap<>();
+
+    @Value("${waf.redis.lock.metrics.enabled:true}")
+    private boolean enabled;
+
+    @Autowired
+    public DistributedLockMetrics(ObjectProvider<MeterRegistry> meterRegistry)
+    {
+        this.meterRegistry = meterRegistry.getIfAvailable();
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * 开始获取锁
+     *
+     * @param lockName 锁名
+     * @return 开始时间，传给后续方法；未开启时返回0
+     */
+    public long beginAcquire(String lockName)
+    {
+        if (!enabled)
+        {
+            return 0L;
+        }
+        statsOf(lockName).waiters.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * 获取成功
+     *
+     * @param startNanos {@link #beginAcquire}的返回值
+     * @return 获取成功的时间，传给{@link #released}
+     */
+    public long acquired(String lockName, long startNanos)
+    {
+        if (!enabled)
+        {
+            return 0L;
+        }
+        long now = System.nanoTime();
+        LockStats lockStats = endAcquire(lockName, startNanos, now);
+        lockStats.acquisitions.increment();
+        return now;
+    }
+
+    /**
+     * 等待超时未获取到锁
+     */
+    public void timedOut(String lockName, long startNanos)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        LockStats lockStats = endAcquire(lockName, startNanos, System.nanoTime());
+        lockStats.timeouts.increment();
+        if (null != lockStats.timeoutCounter)
+        {
+            lockStats.timeoutCounter.increment();
+        }
+    }
+
+    /**
+     * 获取锁时发生异常(被中断、redis不可用等)
+     */
+    public void failed(String lockName, long startNanos)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        LockStats lockStats = endAcquire(lockName, startNanos, System.nanoTime());
+        lockStats.failures.increment();
+        if (null != lockStats.failureCounter)
+        {
+            lockStats.failureCounter.increment();
+        }
+    }
+
+    /**
+     * 解锁
+     *
+     * @param acquiredNanos {@link #acquired}的返回值
+     */
+    public void released(String lockName, long acquiredNanos)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        long holdNanos = System.nanoTime() - acquiredNanos;
+        LockStats lockStats = statsOf(lockName);
+        lockStats.holdNanos.add(holdNanos);
+        lockStats.maxHoldNanos.accumulateAndGet(holdNanos, Math::max);
+        if (null != lockStats.holdTimer)
+        {
+            lockStats.holdTimer.record(holdNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 等待时间最长的锁
+     *
+     * @param limit 返回的数量
+     */
+    public List<LockSnapshot> topContended(int limit)
+    {
+        return stats.entrySet().stream()
+                .map(entry -> new LockSnapshot(entry.getKey(), entry.getValue()))
+                .sorted(Comparator.comparingLong(LockSnapshot::getTotalWaitMillis).reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    private LockStats endAcquire(String lockName, long startNanos, long now)
+    {
+        long waitNanos = now - startNanos;
+        LockStats lockStats = statsOf(lockName);
+        lockStats.waiters.decrementAndGet();
+        lockStats.waitNanos.add(waitNanos);
+        lockStats.maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        if (null != lockStats.acquireTimer)
+        {
+            lockStats.acquireTimer.record(waitNanos, TimeUnit.NANOSECONDS);
+        }
+        return lockStats;
+    }
+
+    private LockStats statsOf(String lockName)
+    {
+        LockStats lockStats = stats.get(lockName);
+        return null != lockStats ? lockStats : stats.computeIfAbsent(lockName, this::createStats);
+    }
+
+    private LockStats createStats(String lockName)
+    {
+        LockStats lockStats = new LockStats();
+        if (null != meterRegistry)
+        {
+            lockStats.acquireTimer = Timer.builder("distributed.lock.acquire").tag(TAG_LOCK, lockName)
+                    .publishPercentileHistogram().register(meterRegistry);
+            lockStats.holdTimer = Timer.builder("distributed.lock.hold").tag(TAG_LOCK, lockName)
+                    .publishPercentileHistogram().register(meterRegistry);
+            lockStats.timeoutCounter = Counter.builder("distributed.lock.timeouts").tag(TAG_LOCK, lockName).register(meterRegistry);
+            lockStats.failureCounter = Counter.builder("distributed.lock.failures").tag(TAG_LOCK, lockName).register(meterRegistry);
+            Gauge.builder("distributed.lock.waiters", lockStats.waiters, AtomicInteger::get).tag(TAG_LOCK, lockName).register(meterRegistry);
+        }
+        return lockStats;
+    }
+
+    private static final class LockStats
+    {
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        private final LongAdder acquisitions = new LongAdder();
+
+        private final LongAdder timeouts = new LongAdder();
+
+        private final LongAdder failures = new LongAdder();
+
+        private final LongAdder waitNanos = new LongAdder();
+
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private final LongAdder holdNanos = new LongAdder();
+
+        private final AtomicLong maxHoldNanos = new AtomicLong();
+
+        private Timer acquireTimer;
+
+        private Timer holdTimer;
+
+        private Counter timeoutCounter;
+
+        private Counter failureCounter;
+    }
+
+    /**
+     * 单个锁的统计快照
+     */
+    @Getter
+    public static final class LockSnapshot
+    {
+        private final String lockName;
+
+        private final int waiters;
+
+        private final long acquisitions;
+
+        private final long timeouts;
+
+        private final long failures;
+
+        private final long totalWaitMillis;
+
+        private final long maxWaitMillis;
+
+        private final long totalHoldMillis;
+
+        private final long maxHoldMillis;
+
+        private LockSnapshot(String lockName, LockStats stats)
+        {
+            this.lockName = lockName;
+            this.waiters = stats.waiters.get();
+            this.acquisitions = stats.acquisitions.sum();
+            this.timeouts = stats.timeouts.sum();
+            this.failures = stats.failures.sum();
+            this.totalWaitMillis = TimeUnit.NANOSECONDS.toMillis(stats.waitNanos.sum());
+            this.maxWaitMillis = TimeUnit.NANOSECONDS.toMillis(stats.maxWaitNanos.get());
+            this.totalHoldMillis = TimeUnit.NANOSECONDS.toMillis(stats.holdNanos.sum());
+            this.maxHoldMillis = TimeUnit.NANOSECONDS.toMillis(stats.maxHoldNanos.get());
+        }
+    }
+}
@@ -2,15 +2,27 @@ package com.inspur.bss.waf.redis.lock;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.integration.redis.util.RedisLockRegistry;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
 /**
  * Distributed lock implemented by redis
+ * 加锁成功后由{@link RedisLockWatchdog}续期，直到解锁或持有线程结束；
+ * 默认经{@link RedisLocalHandoffLock}在本地排队，本进程内的线程之间直接交接redis锁
  *
  * @author sunguangtao
  * @date 2018/12/18
@@ -20,20 +32,159 @@ import java.util.concurrent.locks.Lock;
 @SuppressWarnings("all")
 public class RedisDistributedLock
 {
+    /**
+     * 多key加锁，全部空闲才全部加锁：KEYS为排序后的锁key；ARGV[1]token ARGV[2]过期毫秒数
+     */
+    private static final RedisScript<Long> MULTI_LOCK_SCRIPT = new DefaultRedisScript<>(
+            "for i = 1, #KEYS do "
+                    + "  local owner = redis.call('GET', KEYS[i]) "
+                    + "  if owner and owner ~= ARGV[1] then return 0 end "
+                    + "end "
+                    + "for i = 1, #KEYS do "
+                    + "  redis.call('SET', KEYS[i], ARGV[1], 'PX', ARGV[2]) "
+                    + "end "
+                    + "return 1", Long.class);
+
+    /**
+     * 多key解锁，只删除仍由token持有的key：ARGV[1]token
+     */
+    private static final RedisScript<Long> MULTI_UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "local count = 0 "
+                    + "for i = 1, #KEYS do "
+                    + "  if redis.call('GET', KEYS[i]) == ARGV[1] then "
+                    + "    count = count + redis.call('DEL', KEYS[i]) "
+                    + "  end "
+                    + "end "
+                    + "return count", Long.class);
+
+    private static final long MULTI_LOCK_RETRY_MILLIS = 100L;
+
     private final RedisLockRegistry redisLockRegistry;
 
+    private final RedisLockWatchdog watchdog;
+
+    /**
+     * 本进程持有的锁的租约，同一个key同一时刻只会被一个线程持有，重入时只增加计数
+     */
+    private final Map<String, HeldLease> leases = new ConcurrentHashMap<>();
+
+    private final RedisLocalHandoffLock localHandoffLock;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 多key锁的租约，按token索引
+     */
+    private final Map<String, List<RedisLockWatchdog.Lease>> multiLeases = new ConcurrentHashMap<>();
+
+    /**
+     * 是否先在本地排队、在本进程线程间直接交接redis锁
+     */
+    @Value("${waf.redis.lock.local-handoff:true}")
+    private boolean localHandoff;
+
     @Autowired
-    public RedisDistributedLock(RedisLockRegistry redisLockRegistry) {
+    public RedisDistributedLock(RedisLockRegistry redisLockRegistry, RedisLockWatchdog watchdog, RedisLocalHandoffLock localHandoffLock,
+                                StringRedisTemplate stringRedisTemplate) {
         this.redisLockRegistry = redisLockRegistry;
+        this.watchdog = watchdog;
+        this.localHandoffLock = localHandoffLock;
+        this.stringRedisTemplate = stringRedisTemplate;
     }
 
     public boolean tryLock(String lockKey, Long expireSeconds) throws InterruptedException{
+        if (localHandoff) {
+            return localHandoffLock.tryLock(lockKey, expireSeconds, TimeUnit.SECONDS);
+        }
         Lock lock = redisLockRegistry.obtain(lockKey);
-        return lock.tryLock(expireSeconds, TimeUnit.SECONDS);
+        boolean locked = lock.tryLock(expireSeconds, TimeUnit.SECONDS);
+        if (locked) {
+            HeldLease held = leases.get(lockKey);
+            if (held != null && held.owner == Thread.currentThread()) {
+                held.holds++;
+            } else {
+                leases.put(lockKey, new HeldLease(watchdog.watch(lockKey)));
+            }
+        }
+        return locked;
     }
 
     public void unlock(String lockKey) {
+        if (localHandoff) {
+            localHandoffLock.unlock(lockKey);
+            return;
+        }
+        HeldLease held = leases.get(lockKey);
+        if (held != null && held.owner == Thread.currentThread() && --held.holds == 0) {
+            leases.remove(lockKey);
+            held.lease.cancel();
+        }
         Lock lock = redisLockRegistry.obtain(lockKey);
         lock.unlock();
     }
+
+    /**
+     * 同时获取多个锁，每次尝试一个lua脚本往返，全部获取成功或全部不获取
+     * 【key排序去重后加锁；与单key锁使用相同的redis key，互相排斥；不可重入】
+     *
+     * @param lockKeys      锁key
+     * @param expireSeconds 最长等待时间（单位：秒）
+     * @return 获取成功返回token，解锁时传入；超时返回null
+     */
+    public String tryLockAll(Collection<String> lockKeys, Long expireSeconds) throws InterruptedException {
+        List<String> redisKeys = toRedisKeys(lockKeys);
+        String token = watchdog.getClientId() + ":multi:" + UUID.randomUUID();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(expireSeconds == null ? 0L : expireSeconds);
+        while (true) {
+            Long locked = stringRedisTemplate.execute(MULTI_LOCK_SCRIPT, redisKeys, token, String.valueOf(watchdog.getExpireAfter()));
+            if (locked != null && locked > 0) {
+                List<RedisLockWatchdog.Lease> leases = new ArrayList<>(redisKeys.size());
+                for (String redisKey : redisKeys) {
+                    leases.add(watchdog.watch(redisKey, token, Thread.currentThread()));
+                }
+                multiLeases.put(token, leases);
+                return token;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(MULTI_LOCK_RETRY_MILLIS)));
+        }
+    }
+
+    /**
+     * 释放{@link #tryLockAll}获取的锁，一个lua脚本往返
+     *
+     * @param lockKeys 锁key，与加锁时相同
+     * @param token    加锁时返回的token
+     */
+    public void unlockAll(Collection<String> lockKeys, String token) {
+        List<RedisLockWatchdog.Lease> leases = multiLeases.remove(token);
+        if (leases != null) {
+            leases.forEach(RedisLockWatchdog.Lease::cancel);
+        }
+        stringRedisTemplate.execute(MULTI_UNLOCK_SCRIPT, toRedisKeys(lockKeys), token);
+    }
+
+    private List<String> toRedisKeys(Collection<String> lockKeys) {
+        List<String> redisKeys = new ArrayList<>(lockKeys.size());
+        for (String lockKey : new TreeSet<>(lockKeys)) {
+            redisKeys.add(watchdog.getRegistryKey() + ":" + lockKey);
+        }
+        return redisKeys;
+    }
+
+    private static final class HeldLease {
+
+        private final RedisLockWatchdog.Lease lease;
+
+        private final Thread owner = Thread.currentThread();
+
+        private int holds = 1;
+
+        private HeldLease(RedisLockWatchdog.Lease lease) {
+            this.lease = lease;
+        }
+    }
 }
@@ -0,0 +1,364 @@
+package com.inspur.bss.waf.redis.lock;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 公平的非阻塞分布式锁
+ * 【等待者按到达顺序进入redis有序集合排队，只有队首能获取锁；解锁时通过pub/sub只通知新的队首，
+ * 等待期间不轮询redis也不占用线程，获取结果通过CompletableFuture返回；
+ * 通知丢失(如订阅断线)时按pollMillis兜底重试；超过等待截止时间的等待者(含宕机的)在下次加解锁时被清出队列；
+ * 锁key与RedisLockRegistry相同，两种方式互斥，但使用RedisLockRegistry加锁的一方不参与排队】
+ */
+@Slf4j
+@Component
+public class RedisFairLock implements MessageListener
+{
+    /**
+     * KEYS[1]锁 KEYS[2]等待队列 KEYS[3]等待截止时间 KEYS[4]到达序号；
+     * ARGV[1]token ARGV[2]锁过期毫秒数 ARGV[3]当前时间 ARGV[4]等待截止时间
+     */
+    private static final String PURGE_EXPIRED_WAITERS =
+            "while true do "
+                    + "  local head = redis.call('ZRANGE', KEYS[2], 0, 0)[1] "
+                    + "  if not head then break end "
+                    + "  local deadline = tonumber(redis.call('HGET', KEYS[3], head)) "
+                    + "  if deadline and deadline >= tonumber(ARGV[3]) then break end "
+                    + "  redis.call('ZREM', KEYS[2], head) "
+                    + "  redis.call('HDEL', KEYS[3], head) "
+                    + "end ";
+
+    private static final RedisScript<Long> ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+            PURGE_EXPIRED_WAITERS
+                    + "local owner = redis.call('GET', KEYS[1]) "
+                    + "if owner == ARGV[1] then "
+                    + "  redis.call('PEXPIRE', KEYS[1], ARGV[2]) "
+                    + "  return 1 "
+                    + "end "
+                    + "if not owner then "
+                    + "  local head = redis.call('ZRANGE', KEYS[2], 0, 0)[1] "
+                    + "  if (not head) or head == ARGV[1] then "
+                    + "    redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) "
+                    + "    redis.call('ZREM', KEYS[2], ARGV[1]) "
+                    + "    redis.call('HDEL', KEYS[3], ARGV[1]) "
+                    + "    return 1 "
+                    + "  end "
+                    + "end "
+                    + "if not redis.call('ZSCORE', KEYS[2], ARGV[1]) then "
+                    + "  redis.call('ZADD', KEYS[2], redis.call('INCR', KEYS[4]), ARGV[1]) "
+                    + "end "
+                    + "redis.call('HSET', KEYS[3], ARGV[1], ARGV[4]) "
+                    + "local keep = tonumber(ARGV[4]) - tonumber(ARGV[3]) + tonumber(ARGV[2]) "
+                    + "if redis.call('PTTL', KEYS[2]) < keep then "
+                    + "  redis.call('PEXPIRE', KEYS[2], keep) "
+                    + "  redis.call('PEXPIRE', KEYS[3], keep) "
+                    + "  redis.call('PEXPIRE', KEYS[4], keep) "
+                    + "end "
+                    + "return 0", Long.class);
+
+    /**
+     * 解锁或放弃等待后通知队首：ARGV[1]token ARGV[2]未使用 ARGV[3]当前时间 ARGV[4]通知频道
+     */
+    private static final String NOTIFY_HEAD =
+            "if not redis.call('GET', KEYS[1]) then "
+                    + "  local head = redis.call('ZRANGE', KEYS[2], 0, 0)[1] "
+                    + "  if head then redis.call('PUBLISH', ARGV[4], head) end "
+                    + "end ";
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end "
+                    + "redis.call('DEL', KEYS[1]) "
+                    + PURGE_EXPIRED_WAITERS
+                    + NOTIFY_HEAD
+                    + "return 1", Long.class);
+
+    private static final RedisScript<Long> CANCEL_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('ZREM', KEYS[2], ARGV[1]) "
+                    + "redis.call('HDEL', KEYS[3], ARGV[1]) "
+                    + PURGE_EXPIRED_WAITERS
+                    + NOTIFY_HEAD
+                    + "return 1", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisLockWatchdog watchdog;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final String channel;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * 本进程正在等待的token
+     */
+    private final Map<String, Waiter> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * 本进程持有的token与租约
+     */
+    private final Map<String, RedisLockWatchdog.Lease> leases = new ConcurrentHashMap<>();
+
+    @Value("${waf.redis.lock.fair.poll-millis:1000}")
+    private long pollMillis;
+
+    private final LongAdder acquisitions = new LongAdder();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LongAdder redisCalls = new LongAdder();
+
+    private final LongAdder notifications = new LongAdder();
+
+    @Autowired
+    public RedisFairLock(StringRedisTemplate stringRedisTemplate, RedisLockWatchdog watchdog, RedisMessageListenerContainer listenerContainer)
+    {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.watchdog = watchdog;
+        this.listenerContainer = listenerContainer;
+        this.channel = watchdog.getRegistryKey() + ":fair-lock:notify";
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redis-fair-lock");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void init()
+    {
+        listenerContainer.addMessageListener(this, new ChannelTopic(channel));
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 异步获取锁
+     *
+     * @param lockKey  锁key
+     * @param waitTime 最长等待时间，小于等于0表示只尝试一次
+     * @param unit     时间单位
+     * @return 获取成功时完成为token(解锁时传入)，超时完成为null
+     */
+    public CompletableFuture<String> acquireAsync(String lockKey, long waitTime, TimeUnit unit)
+    {
+        Waiter waiter = new Waiter(lockKey, watchdog.getClientId() + ":" + UUID.randomUUID(),
+                System.currentTimeMillis() + Math.max(0L, unit.toMillis(waitTime)));
+        waiters.put(waiter.token, waiter);
+        attempt(waiter);
+        //在waiter锁内登记轮询与超时任务：通知线程获取成功时finish也在该锁内执行，
+        //不会出现finish已执行但之后才登记的轮询任务无人取消
+        synchronized (waiter)
+        {
+            if (!waiter.finished)
+            {
+                waiter.poll = scheduler.scheduleWithFixedDelay(() -> attempt(waiter), pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+                waiter.timeout = scheduler.schedule(() -> attempt(waiter),
+                        Math.max(0L, waiter.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+        }
+        return waiter.future;
+    }
+
+    /**
+     * 解锁并通知下一个等待者
+     *
+     * @param lockKey 锁key
+     * @param token   获取锁时返回的token
+     * @return 锁仍由该token持有并已释放时返回true
+     */
+    public boolean release(String lockKey, String token)
+    {
+        RedisLockWatchdog.Lease lease = leases.remove(token);
+        if (null != lease)
+        {
+            lease.cancel();
+        }
+        redisCalls.increment();
+        Long released = stringRedisTemplate.execute(RELEASE_SCRIPT, keys(lockKey), token, "", String.valueOf(System.currentTimeMillis()), channel);
+        return null != released && released > 0;
+    }
+
+    /**
+     * 通知消息为被唤醒的队首token
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern)
+    {
+        Waiter waiter = waiters.get(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (null != waiter)
+        {
+            notifications.increment();
+            scheduler.execute(() -> attempt(waiter));
+        }
+    }
+
+    public long getAcquisitionCount()
+    {
+        return acquisitions.sum();
+    }
+
+    public long getTimeoutCount()
+    {
+        return timeouts.sum();
+    }
+
+    /**
+     * 加锁、解锁、放弃等待调用redis脚本的总次数
+     */
+    public long getRedisCallCount()
+    {
+        return redisCalls.sum();
+    }
+
+    public long getNotificationCount()
+    {
+        return notifications.sum();
+    }
+
+    /**
+     * 平均每次成功加锁的redis调用次数(含解锁)
+     */
+    public double getRedisCallsPerAcquisition()
+    {
+        long count = acquisitions.sum();
+        return count == 0 ? 0D : (double) redisCalls.sum() / count;
+    }
+
+    private void attempt(Waiter waiter)
+    {
+        String result;
+        synchronized (waiter)
+        {
+            if (waiter.finished)
+            {
+                return;
+            }
+            result = tryAcquire(waiter);
+            if (!waiter.finished)
+            {
+                return;
+            }
+        }
+        //在锁外完成future，回调不会在持有waiter锁时执行
+        waiter.future.complete(result);
+    }
+
+    /**
+     * 尝试一次获取，获取成功或超时时标记finished
+     *
+     * @return 获取成功时返回token，否则返回null
+     */
+    private String tryAcquire(Waiter waiter)
+    {
+        long now = System.currentTimeMillis();
+        try
+        {
+            redisCalls.increment();
+            Long acquired = stringRedisTemplate.execute(ACQUIRE_SCRIPT, keys(waiter.lockKey), waiter.token,
+                    String.valueOf(watchdog.getExpireAfter()), String.valueOf(now), String.valueOf(waiter.deadline));
+            if (null != acquired && acquired > 0)
+            {
+                finish(waiter);
+                acquisitions.increment();
+                leases.put(waiter.token, watchdog.watch(watchdog.getRegistryKey() + ":" + waiter.lockKey, waiter.token, null));
+                return waiter.token;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("获取公平锁{}异常", waiter.lockKey, e);
+        }
+        if (now >= waiter.deadline)
+        {
+            finish(waiter);
+            timeouts.increment();
+            try
+            {
+                redisCalls.increment();
+                stringRedisTemplate.execute(CANCEL_SCRIPT, keys(waiter.lockKey), waiter.token, "", String.valueOf(now), channel);
+            }
+            catch (RuntimeException e)
+            {
+                //未能移出队列时由截止时间兜底清理
+                log.warn("放弃等待公平锁{}异常", waiter.lockKey, e);
+            }
+        }
+        return null;
+    }
+
+    private void finish(Waiter waiter)
+    {
+        waiter.finished = true;
+        waiters.remove(waiter.token);
+        if (null != waiter.poll)
+        {
+            waiter.poll.cancel(false);
+        }
+        if (null != waiter.timeout)
+        {
+            waiter.timeout.cancel(false);
+        }
+    }
+
+    private List<String> keys(String lockKey)
+    {
+        String lock = watchdog.getRegistryKey() + ":" + lockKey;
+        return Arrays.asList(lock, lock + ":fair-queue", lock + ":fair-deadlines", lock + ":fair-seq");
+    }
+
+    private static final class Waiter
+    {
+        private final String lockKey;
+
+        private final String token;
+
+        private final long deadline;
+
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        private volatile ScheduledFuture<?> poll;
+
+        private volatile ScheduledFuture<?> timeout;
+
+        /**
+         * 已获取成功或已超时，只在waiter锁内读写
+         */
+        private boolean finished;
+
+        private Waiter(String lockKey, String token, long deadline)
+        {
+            this.lockKey = lockKey;
+            this.token = token;
+            this.deadline = deadline;
+        }
+    }
+}
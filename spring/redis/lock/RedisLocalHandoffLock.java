@@ -0,0 +1,293 @@
+package com.inspur.bss.waf.redis.lock;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 两级分布式锁
+ * 【同一进程内的线程先在按lockKey划分的本地公平锁上排队，只有本地获胜者访问redis；
+ * 解锁时如果本地还有线程在等，redis锁不释放而是直接交给下一个本地线程，redis访问次数与节点数相关而与线程数无关；
+ * 为避免一个节点长期占用锁，连续交接maxHandoffs次后释放redis锁，让其他节点有机会获取】
+ */
+@Slf4j
+@Component
+public class RedisLocalHandoffLock
+{
+    /**
+     * KEYS[1]锁key；ARGV[1]token ARGV[2]过期毫秒数
+     */
+    private static final RedisScript<Boolean> OBTAIN_SCRIPT = new DefaultRedisScript<>(
+            "local owner = redis.call('GET', KEYS[1]) "
+                    + "if owner == ARGV[1] then "
+                    + "  redis.call('PEXPIRE', KEYS[1], ARGV[2]) "
+                    + "  return true "
+                    + "end "
+                    + "if not owner then "
+                    + "  redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) "
+                    + "  return true "
+                    + "end "
+                    + "return false", Boolean.class);
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then "
+                    + "  return redis.call('DEL', KEYS[1]) "
+                    + "end "
+                    + "return 0", Long.class);
+
+    private static final long REMOTE_RETRY_MILLIS = 100L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisLockWatchdog watchdog;
+
+    private final Map<String, LocalEntry> entries = new ConcurrentHashMap<>();
+
+    @Value("${waf.redis.lock.local.max-handoffs:16}")
+    private int maxHandoffs;
+
+    private final LongAdder localHandoffs = new LongAdder();
+
+    private final LongAdder remoteAcquisitions = new LongAdder();
+
+    private final LongAdder remoteReleases = new LongAdder();
+
+    private final LongAdder failedAcquisitions = new LongAdder();
+
+    @Autowired
+    public RedisLocalHandoffLock(StringRedisTemplate stringRedisTemplate, RedisLockWatchdog watchdog)
+    {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * 获取锁，可重入
+     *
+     * @param lockKey  锁key
+     * @param waitTime 最长等待时间，包括本地排队与redis获取
+     * @param unit     时间单位
+     */
+    public boolean tryLock(String lockKey, long waitTime, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        LocalEntry entry = retain(lockKey);
+        boolean locked = false;
+        try
+        {
+            if (!entry.lock.tryLock(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+            {
+                failedAcquisitions.increment();
+                return false;
+            }
+            if (entry.lock.getHoldCount() > 1 || entry.remoteHeld())
+            {
+                if (entry.lock.getHoldCount() == 1)
+                {
+                    //交接期间租约不检查持有线程，由接手的线程重新登记
+                    entry.lease.transferTo(Thread.currentThread());
+                    localHandoffs.increment();
+                }
+                locked = true;
+                return true;
+            }
+            try
+            {
+                locked = obtainRemote(entry, deadline);
+            }
+            catch (InterruptedException | RuntimeException e)
+            {
+                //等待被中断或redis不可用时释放本地锁，否则本地等待线程会一直阻塞，重入时也会误判为已持有redis锁
+                failedAcquisitions.increment();
+                entry.lock.unlock();
+                throw e;
+            }
+            if (!locked)
+            {
+                failedAcquisitions.increment();
+                entry.lock.unlock();
+            }
+            return locked;
+        }
+        finally
+        {
+            if (!locked)
+            {
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * 解锁，本地有等待线程且未超过连续交接次数时把redis锁交给下一个本地线程
+     *
+     * @param lockKey 锁key
+     */
+    public void unlock(String lockKey)
+    {
+        LocalEntry entry = entries.get(lockKey);
+        if (null == entry || !entry.lock.isHeldByCurrentThread())
+        {
+            throw new IllegalStateException("You do not own lock at " + lockKey);
+        }
+        if (entry.lock.getHoldCount() > 1)
+        {
+            entry.lock.unlock();
+            release(entry);
+            return;
+        }
+        if (entry.remoteHeld() && entry.lock.hasQueuedThreads() && entry.handoffs < maxHandoffs)
+        {
+            entry.handoffs++;
+            entry.lease.transferTo(null);
+        }
+        else
+        {
+            releaseRemote(entry);
+        }
+        entry.lock.unlock();
+        release(entry);
+    }
+
+    public long getLocalHandoffCount()
+    {
+        return localHandoffs.sum();
+    }
+
+    public long getRemoteAcquisitionCount()
+    {
+        return remoteAcquisitions.sum();
+    }
+
+    public long getRemoteReleaseCount()
+    {
+        return remoteReleases.sum();
+    }
+
+    public long getFailedAcquisitionCount()
+    {
+        return failedAcquisitions.sum();
+    }
+
+    private boolean obtainRemote(LocalEntry entry, long deadline) throws InterruptedException
+    {
+        //每次远程获取使用新的token，上一个持有者延迟执行的释放不会删除新持有者的key
+        String token = watchdog.getClientId() + ":handoff:" + UUID.randomUUID();
+        while (true)
+        {
+            Boolean obtained = stringRedisTemplate.execute(OBTAIN_SCRIPT, Collections.singletonList(entry.redisKey),
+                    token, String.valueOf(watchdog.getExpireAfter()));
+            if (Boolean.TRUE.equals(obtained))
+            {
+                entry.token = token;
+                entry.lease = watchdog.watch(entry.redisKey, token, Thread.currentThread());
+                entry.handoffs = 0;
+                remoteAcquisitions.increment();
+                return true;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(REMOTE_RETRY_MILLIS)));
+        }
+    }
+
+    private void releaseRemote(LocalEntry entry)
+    {
+        if (null == entry.lease)
+        {
+            return;
+        }
+        entry.lease.cancel();
+        entry.lease = null;
+        entry.handoffs = 0;
+        remoteReleases.increment();
+        try
+        {
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(entry.redisKey), entry.token);
+        }
+        catch (RuntimeException e)
+        {
+            //释放失败时锁在过期后自动释放
+            log.warn("释放redis锁{}异常", entry.redisKey, e);
+        }
+    }
+
+    private LocalEntry retain(String lockKey)
+    {
+        return entries.compute(lockKey, (key, entry) -> {
+            LocalEntry retained = null == entry ? new LocalEntry(key, watchdog.getRegistryKey() + ":" + key) : entry;
+            retained.users++;
+            return retained;
+        });
+    }
+
+    /**
+     * 没有线程持有或等待时移除本地锁；交接后等待线程超时放弃的情况下，由最后一个离开的线程释放redis锁
+     */
+    private void release(LocalEntry entry)
+    {
+        boolean[] removed = new boolean[1];
+        entries.computeIfPresent(entry.lockKey, (key, current) -> {
+            if (current != entry || --current.users > 0)
+            {
+                return current;
+            }
+            removed[0] = true;
+            return null;
+        });
+        if (removed[0] && entry.remoteHeld())
+        {
+            releaseRemote(entry);
+        }
+    }
+
+    private static final class LocalEntry
+    {
+        private final ReentrantLock lock = new ReentrantLock(true);
+
+        private final String lockKey;
+
+        private final String redisKey;
+
+        /**
+         * 以下字段只在持有本地锁时读写(users除外，在map的compute中读写)
+         */
+        private volatile RedisLockWatchdog.Lease lease;
+
+        /**
+         * 写入redis的值，与RedisLockRegistry的clientId不同，保证与同进程内直接使用RedisLockRegistry的线程互斥
+         */
+        private volatile String token;
+
+        private int handoffs;
+
+        private int users;
+
+        private LocalEntry(String lockKey, String redisKey)
+        {
+            this.lockKey = lockKey;
+            this.redisKey = redisKey;
+        }
+
+        private boolean remoteHeld()
+        {
+            RedisLockWatchdog.Lease current = lease;
+            return null != current && !current.isCancelled();
+        }
+    }
+}
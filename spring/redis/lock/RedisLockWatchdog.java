@@ -0,0 +1,242 @@
+package com.inspur.bss.waf.redis.lock;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.integration.redis.util.RedisLockRegistry;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
+
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 分布式锁租约续期
+ * 【RedisLockRegistry只在加锁时设置一次过期时间，任务执行时间超过过期时间后锁会被其他节点抢到；
+ * 加锁成功后按过期时间的1/3周期续期，只有redis中的值仍是本进程的clientId时才续期；
+ * 持有锁的线程结束(未解锁就退出)或解锁后停止续期，进程宕机后锁在一个过期时间内自动释放】
+ */
+@Slf4j
+@Component
+public class RedisLockWatchdog
+{
+    /**
+     * KEYS[1]锁key；ARGV[1]clientId ARGV[2]过期毫秒数
+     */
+    private static final RedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then "
+                    + "  return redis.call('PEXPIRE', KEYS[1], ARGV[2]) "
+                    + "end "
+                    + "return 0", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final String registryKey;
+
+    private final String clientId;
+
+    private final long expireAfter;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder renewals = new LongAdder();
+
+    private final LongAdder lostLeases = new LongAdder();
+
+    private final AtomicInteger activeLeases = new AtomicInteger();
+
+    @Autowired
+    public RedisLockWatchdog(RedisLockRegistry redisLockRegistry, StringRedisTemplate stringRedisTemplate)
+    {
+        this.stringRedisTemplate = stringRedisTemplate;
+        //RedisLockRegistry没有公开这些属性，续期需要与其写入redis的key和值保持一致
+        this.registryKey = (String) readField(redisLockRegistry, "registryKey");
+        this.clientId = (String) readField(redisLockRegistry, "clientId");
+        this.expireAfter = (Long) readField(redisLockRegistry, "expireAfter");
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redis-lock-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 开始续期，需在加锁成功后由持有锁的线程调用
+     *
+     * @param lockKey 锁key(不含registryKey前缀)
+     * @return 租约，解锁前调用{@link Lease#cancel()}停止续期
+     */
+    public Lease watch(String lockKey)
+    {
+        return watch(registryKey + ":" + lockKey, clientId, Thread.currentThread());
+    }
+
+    /**
+     * 开始续期任意以指定值持有的key
+     *
+     * @param redisKey redis中的锁key
+     * @param value    持有者写入的值，只有redis中的值与之相同时才续期
+     * @param owner    持有锁的线程，结束后停止续期；为null时(异步持有)只在取消时停止
+     * @return 租约，解锁前调用{@link Lease#cancel()}停止续期
+     */
+    public Lease watch(String redisKey, String value, Thread owner)
+    {
+        Lease lease = new Lease(redisKey, value, owner);
+        long period = Math.max(expireAfter / 3, 1L);
+        lease.future = scheduler.scheduleAtFixedRate(lease::renew, period, period, TimeUnit.MILLISECONDS);
+        activeLeases.incrementAndGet();
+        return lease;
+    }
+
+    public long getRenewalCount()
+    {
+        return renewals.sum();
+    }
+
+    /**
+     * 续期时发现锁已不属于本进程(已过期并被其他节点获取)的次数
+     */
+    public long getLostLeaseCount()
+    {
+        return lostLeases.sum();
+    }
+
+    public int getActiveLeaseCount()
+    {
+        return activeLeases.get();
+    }
+
+    public long getExpireAfter()
+    {
+        return expireAfter;
+    }
+
+    public String getRegistryKey()
+    {
+        return registryKey;
+    }
+
+    public String getClientId()
+    {
+        return clientId;
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        scheduler.shutdownNow();
+    }
+
+    private static Object readField(Object target, String name)
+    {
+        Field field = ReflectionUtils.findField(target.getClass(), name);
+        if (null == field)
+        {
+            throw new IllegalStateException("RedisLockRegistry has no field " + name + ", unsupported spring-integration version");
+        }
+        ReflectionUtils.makeAccessible(field);
+        return ReflectionUtils.getField(field, target);
+    }
+
+    /**
+     * 单次加锁的租约
+     */
+    public final class Lease
+    {
+        private final String redisKey;
+
+        private final String value;
+
+        private volatile Thread owner;
+
+        private volatile ScheduledFuture<?> future;
+
+        private volatile boolean cancelled;
+
+        private Lease(String redisKey, String value, Thread owner)
+        {
+            this.redisKey = redisKey;
+            this.value = value;
+            this.owner = owner;
+        }
+
+        /**
+         * 停止续期，可重复调用
+         */
+        public void cancel()
+        {
+            if (cancelled)
+            {
+                return;
+            }
+            synchronized (this)
+            {
+                if (cancelled)
+                {
+                    return;
+                }
+                cancelled = true;
+            }
+            if (null != future)
+            {
+                future.cancel(false);
+            }
+            activeLeases.decrementAndGet();
+        }
+
+        /**
+         * 更换持有锁的线程，为null时不检查持有线程(如本地交接的间隙)
+         */
+        public void transferTo(Thread newOwner)
+        {
+            this.owner = newOwner;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        private void renew()
+        {
+            if (cancelled)
+            {
+                return;
+            }
+            Thread currentOwner = owner;
+            if (null != currentOwner && !currentOwner.isAlive())
+            {
+                log.warn("redis锁{}的持有线程{}已结束但未解锁,停止续期", redisKey, currentOwner.getName());
+                cancel();
+                return;
+            }
+            try
+            {
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(redisKey),
+                        value, String.valueOf(expireAfter));
+                if (null != renewed && renewed > 0)
+                {
+                    renewals.increment();
+                    return;
+                }
+                lostLeases.increment();
+                log.warn("redis锁{}续期失败,锁已过期或被其他节点持有", redisKey);
+                cancel();
+            }
+            catch (RuntimeException e)
+            {
+                //redis暂时不可用时保留续期任务，下个周期重试
+                log.warn("redis锁{}续期异常", redisKey, e);
+            }
+        }
+    }
+}
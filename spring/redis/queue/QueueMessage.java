@@ -0,0 +1,82 @@
+package com.inspur.bss.waf.redis.queue;
+
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * 队列消息
+ * 【在redis中编码为 id:入队时间毫秒:已失败次数:内容，ack/requeue按编码后的原值定位处理中列表里的元素】
+ */
+@Getter
+public class QueueMessage
+{
+    private static final char SEPARATOR = ':';
+
+    private final String id;
+
+    private final long enqueuedAt;
+
+    /**
+     * 已处理失败的次数
+     */
+    private final int attempts;
+
+    private final String payload;
+
+    private final String encoded;
+
+    private QueueMessage(String id, long enqueuedAt, int attempts, String payload)
+    {
+        this.id = id;
+        this.enqueuedAt = enqueuedAt;
+        this.attempts = attempts;
+        this.payload = payload;
+        this.encoded = id + SEPARATOR + enqueuedAt + SEPARATOR + attempts + SEPARATOR + payload;
+    }
+
+    private QueueMessage(String payload)
+    {
+        //不是通过队列写入的元素，整体作为内容
+        this.id = null;
+        this.enqueuedAt = 0L;
+        this.attempts = 0;
+        this.payload = payload;
+        this.encoded = payload;
+    }
+
+    static QueueMessage create(String payload)
+    {
+        return new QueueMessage(UUID.randomUUID().toString(), System.currentTimeMillis(), 0, payload);
+    }
+
+    /**
+     * 失败次数加一后的消息，id与入队时间不变
+     */
+    QueueMessage nextAttempt()
+    {
+        return new QueueMessage(null == id ? UUID.randomUUID().toString() : id,
+                enqueuedAt > 0 ? enqueuedAt : System.currentTimeMillis(), attempts + 1, payload);
+    }
+
+    static QueueMessage decode(String encoded)
+    {
+        int first = encoded.indexOf(SEPARATOR);
+        int second = first < 0 ? -1 : encoded.indexOf(SEPARATOR, first + 1);
+        int third = second < 0 ? -1 : encoded.indexOf(SEPARATOR, second + 1);
+        if (third < 0)
+        {
+            return new QueueMessage(encoded);
+        }
+        try
+        {
+            long enqueuedAt = Long.parseLong(encoded.substring(first + 1, second));
+            int attempts = Integer.parseInt(encoded.substring(second + 1, third));
+            return new QueueMessage(encoded.substring(0, first), enqueuedAt, attempts, encoded.substring(third + 1));
+        }
+        catch (NumberFormatException e)
+        {
+            return new QueueMessage(encoded);
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.inspur.bss.waf.redis.queue;
+
+import com.inspur.bss.waf.redis.RedisHelper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 基于redis list的可靠工作队列
+ * 【key均以 waf:queue:{name} 为前缀，{name}为hash tag，集群模式下同一队列的key在同一个slot；
+ * 待处理列表 waf:queue:{name}:ready，从左边入队、右边出队；出队时原子地移入处理中列表 :processing，
+ * 同时在 :leases 有序集合中记录处理截止时间；处理成功ack从处理中列表删除；
+ * 失败requeue时失败次数加一，按指数退避放入延迟有序集合 :delayed，到期后由出队时移回待处理列表，
+ * 失败次数达到maxAttempts的消息移入死信列表 :dead 不再投递，需人工排查后处理；
+ * 超过截止时间未ack的消息(消费者宕机)由reapExpired放回待处理列表，因此消息至少被处理一次，处理逻辑需要幂等】
+ */
+@Slf4j
+public class RedisWorkQueue
+{
+    private static final String KEY_PREFIX = "waf:queue:";
+
+    /**
+     * 退避时间最多翻倍的次数
+     */
+    private static final int MAX_BACKOFF_SHIFT = 10;
+
+    /**
+     * 批量出队：KEYS[1]待处理 KEYS[2]处理中 KEYS[3]租约 KEYS[4]延迟；ARGV[1]数量 ARGV[2]截止时间 ARGV[3]当前时间
+     * 【先把退避到期的消息移回待处理列表的出队端】
+     */
+    private static final RedisScript<List> POP_SCRIPT = new DefaultRedisScript<>(
+            "local due = redis.call('ZRANGEBYSCORE', KEYS[4], '-inf', ARGV[3], 'LIMIT', 0, tonumber(ARGV[1])) "
+                    + "for _, item in ipairs(due) do "
+                    + "  redis.call('ZREM', KEYS[4], item) "
+                    + "  redis.call('RPUSH', KEYS[1], item) "
+                    + "end "
+                    + "local items = {} "
+                    + "for i = 1, tonumber(ARGV[1]) do "
+                    + "  local item = redis.call('RPOPLPUSH', KEYS[1], KEYS[2]) "
+                    + "  if not item then break end "
+                    + "  redis.call('ZADD', KEYS[3], ARGV[2], item) "
+                    + "  items[#items + 1] = item "
+                    + "end "
+                    + "return items", List.class);
+
+    /**
+     * 处理失败：KEYS[1]待处理 KEYS[2]处理中 KEYS[3]租约 KEYS[4]延迟 KEYS[5]死信；
+     * ARGV[1]原消息 ARGV[2]失败次数加一后的消息 ARGV[3]重新投递时间 ARGV[4]为1时移入死信
+     * 【返回0消息已不在处理中，1已延迟重试，2已移入死信】
+     */
+    private static final RedisScript<Long> REQUEUE_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('ZREM', KEYS[3], ARGV[1]) "
+                    + "if redis.call('LREM', KEYS[2], 1, ARGV[1]) == 0 then "
+                    + "  return 0 "
+                    + "end "
+                    + "if ARGV[4] == '1' then "
+                    + "  redis.call('LPUSH', KEYS[5], ARGV[2]) "
+                    + "  return 2 "
+                    + "end "
+                    + "redis.call('ZADD', KEYS[4], ARGV[3], ARGV[2]) "
+                    + "return 1", Long.class);
+
+    /**
+     * 回收超时消息：KEYS同上；ARGV[1]当前时间 ARGV[2]单次最多回收数量
+     */
+    private static final RedisScript<Long> REAP_SCRIPT = new DefaultRedisScript<>(
+            "local items = redis.call('ZRANGEBYSCORE', KEYS[3], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2])) "
+                    + "local count = 0 "
+                    + "for _, item in ipairs(items) do "
+                    + "  redis.call('ZREM', KEYS[3], item) "
+                    + "  if redis.call('LREM', KEYS[2], 1, item) > 0 then "
+                    + "    redis.call('RPUSH', KEYS[1], item) "
+                    + "    count = count + 1 "
+                    + "  end "
+                    + "end "
+                    + "return count", Long.class);
+
+    private final String name;
+
+    private final String readyKey;
+
+    private final String processingKey;
+
+    private final String leaseKey;
+
+    private final String delayedKey;
+
+    private final String deadKey;
+
+    private final List<String> keys;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisHelper redisHelper;
+
+    private final long visibilityTimeoutMillis;
+
+    private final int maxAttempts;
+
+    private final long retryBackoffMillis;
+
+    private final LongAdder pushed = new LongAdder();
+
+    private final LongAdder popped = new LongAdder();
+
+    private final LongAdder acked = new LongAdder();
+
+    private final LongAdder requeued = new LongAdder();
+
+    private final LongAdder reaped = new LongAdder();
+
+    private final LongAdder deadLettered = new LongAdder();
+
+    private final LongAdder waitMillis = new LongAdder();
+
+    private final LongAdder processMillis = new LongAdder();
+
+    private final LongAdder processed = new LongAdder();
+
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    private volatile ExecutorService consumerExecutor;
+
+    private volatile boolean running;
+
+    /**
+     * @param name                    队列名
+     * @param stringRedisTemplate     队列元素按字符串存储
+     * @param redisHelper             批量ack使用pipeline
+     * @param visibilityTimeoutMillis 出队后超过该时间未ack的消息会被回收重新投递
+     * @param maxAttempts             处理失败达到该次数的消息移入死信列表
+     * @param retryBackoffMillis      第一次失败后的重试间隔，之后每次失败翻倍
+     */
+    public RedisWorkQueue(String name, StringRedisTemplate stringRedisTemplate, RedisHelper redisHelper, long visibilityTimeoutMillis,
+                          int maxAttempts, long retryBackoffMillis)
+    {
+        this.name = name;
+        //队列的所有key使用同一个hash tag，集群模式下落在同一个slot，多key脚本才能执行
+        String keyPrefix = KEY_PREFIX + "{" + name + "}";
+        this.readyKey = keyPrefix + ":ready";
+        this.processingKey = keyPrefix + ":processing";
+        this.leaseKey = keyPrefix + ":leases";
+        this.delayedKey = keyPrefix + ":delayed";
+        this.deadKey = keyPrefix + ":dead";
+        this.keys = Arrays.asList(readyKey, processingKey, leaseKey, delayedKey, deadKey);
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisHelper = redisHelper;
+        this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBackoffMillis = Math.max(0L, retryBackoffMillis);
+    }
+
+    /**
+     * 入队
+     *
+     * @param payload 消息内容
+     * @return 消息
+     */
+    public QueueMessage push(String payload)
+    {
+        QueueMessage message = QueueMessage.create(payload);
+        stringRedisTemplate.opsForList().leftPush(readyKey, message.getEncoded());
+        pushed.increment();
+        return message;
+    }
+
+    /**
+     * 批量入队，每{@link RedisHelper#PIPELINE_CHUNK_SIZE}条一次LPUSH
+     *
+     * @param payloads 消息内容
+     * @return 消息，顺序与传入一致
+     */
+    public List<QueueMessage> pushAll(List<String> payloads)
+    {
+        List<QueueMessage> messages = payloads.stream().map(QueueMessage::create).collect(Collectors.toList());
+        for (int from = 0; from < messages.size(); from += RedisHelper.PIPELINE_CHUNK_SIZE)
+        {
+            List<String> chunk = messages.subList(from, Math.min(from + RedisHelper.PIPELINE_CHUNK_SIZE, messages.size()))
+                    .stream().map(QueueMessage::getEncoded).collect(Collectors.toList());
+            stringRedisTemplate.opsForList().leftPushAll(readyKey, chunk);
+        }
+        pushed.add(messages.size());
+        return messages;
+    }
+
+    /**
+     * 批量出队，一次往返最多取max条并移入处理中列表，退避到期的重试消息优先取出
+     *
+     * @param max 最多取出的条数
+     * @return 取出的消息，队列为空时返回空集合
+     */
+    public List<QueueMessage> pop(int max)
+    {
+        long now = System.currentTimeMillis();
+        List<String> items = stringRedisTemplate.execute(POP_SCRIPT, keys, String.valueOf(max), String.valueOf(now + visibilityTimeoutMillis),
+                String.valueOf(now));
+        if (null == items || items.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        List<QueueMessage> messages = new ArrayList<>(items.size());
+        for (String item : items)
+        {
+            QueueMessage message = QueueMessage.decode(item);
+            if (message.getEnqueuedAt() > 0)
+            {
+                long wait = Math.max(0L, now - message.getEnqueuedAt());
+                waitMillis.add(wait);
+                maxWaitMillis.accumulateAndGet(wait, Math::max);
+            }
+            messages.add(message);
+        }
+        popped.add(messages.size());
+        return messages;
+    }
+
+    /**
+     * 确认消息处理完成
+     */
+    public void ack(QueueMessage message)
+    {
+        ackAll(Collections.singletonList(message));
+    }
+
+    /**
+     * 批量确认，通过pipeline一次往返
+     */
+    public void ackAll(Collection<QueueMessage> messages)
+    {
+        if (messages.isEmpty())
+        {
+            return;
+        }
+        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+        byte[] rawProcessingKey = serializer.serialize(processingKey);
+        byte[] rawLeaseKey = serializer.serialize(leaseKey);
+        redisHelper.pipelined(batch -> {
+            for (QueueMessage message : messages)
+            {
+                byte[] rawValue = serializer.serialize(message.getEncoded());
+                batch.add(connection -> connection.lRem(rawProcessingKey, 1, rawValue), raw -> raw);
+                batch.add(connection -> connection.zRem(rawLeaseKey, rawValue), raw -> raw);
+            }
+        });
+        acked.add(messages.size());
+    }
+
+    /**
+     * 处理失败，失败次数加一；未达到maxAttempts时按退避时间延迟后重新投递，否则移入死信列表
+     *
+     * @return 消息仍在处理中列表(未被ack或回收)时返回true
+     */
+    public boolean requeue(QueueMessage message)
+    {
+        QueueMessage next = message.nextAttempt();
+        boolean dead = next.getAttempts() >= maxAttempts;
+        long retryAt = System.currentTimeMillis() + backoffMillis(next.getAttempts());
+        Long moved = stringRedisTemplate.execute(REQUEUE_SCRIPT, keys, message.getEncoded(), next.getEncoded(),
+                String.valueOf(retryAt), dead ? "1" : "0");
+        if (null == moved || moved == 0)
+        {
+            return false;
+        }
+        if (moved == 2)
+        {
+            deadLettered.increment();
+            log.error("redis work queue {} moved message {} to dead letter list after {} attempts", name, message.getId(), next.getAttempts());
+        }
+        else
+        {
+            requeued.increment();
+        }
+        return true;
+    }
+
+    /**
+     * 第attempts次失败后的重试间隔：retryBackoffMillis * 2^(attempts-1)，最多翻倍{@link #MAX_BACKOFF_SHIFT}次
+     */
+    private long backoffMillis(int attempts)
+    {
+        return retryBackoffMillis << Math.min(Math.max(0, attempts - 1), MAX_BACKOFF_SHIFT);
+    }
+
+    /**
+     * 把超过处理截止时间仍未ack的消息放回待处理列表
+     *
+     * @param limit 单次最多回收的条数
+     * @return 回收的条数
+     */
+    public long reapExpired(int limit)
+    {
+        Long count = stringRedisTemplate.execute(REAP_SCRIPT, keys, String.valueOf(System.currentTimeMillis()), String.valueOf(limit));
+        long reapedCount = null == count ? 0L : count;
+        if (reapedCount > 0)
+        {
+            reaped.add(reapedCount);
+            log.warn("redis work queue {} reaped {} expired messages", name, reapedCount);
+        }
+        return reapedCount;
+    }
+
+    /**
+     * 启动消费者
+     * 【每个消费者线程循环批量出队并逐条处理：处理成功ack，抛出异常则requeue；
+     * 队列为空时休眠idleMillis；其中一个线程兼做超时消息回收】
+     *
+     * @param consumers  消费者线程数
+     * @param batchSize  每次出队的条数
+     * @param idleMillis 队列为空时的休眠时间
+     * @param handler    处理逻辑
+     */
+    public synchronized void start(int consumers, int batchSize, long idleMillis, Consumer<QueueMessage> handler)
+    {
+        if (running)
+        {
+            throw new IllegalStateException("redis work queue " + name + " is already running");
+        }
+        running = true;
+        AtomicInteger threadIndex = new AtomicInteger();
+        consumerExecutor = Executors.newFixedThreadPool(consumers, runnable -> {
+            Thread thread = new Thread(runnable, "redis-queue-" + name + "-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < consumers; i++)
+        {
+            boolean reaper = i == 0;
+            consumerExecutor.execute(() -> consume(batchSize, idleMillis, handler, reaper));
+        }
+    }
+
+    /**
+     * 停止消费者，等待正在处理的批次完成；未处理的消息留在处理中列表，超时后被回收
+     */
+    public synchronized void stop(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        running = false;
+        if (null != consumerExecutor)
+        {
+            consumerExecutor.shutdown();
+            consumerExecutor.awaitTermination(timeout, unit);
+            consumerExecutor = null;
+        }
+    }
+
+    private void consume(int batchSize, long idleMillis, Consumer<QueueMessage> handler, boolean reaper)
+    {
+        long nextReap = 0L;
+        while (running && !Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                if (reaper && System.currentTimeMillis() >= nextReap)
+                {
+                    reapExpired(batchSize);
+                    nextReap = System.currentTimeMillis() + Math.max(visibilityTimeoutMillis / 2, idleMillis);
+                }
+                List<QueueMessage> messages = pop(batchSize);
+                if (messages.isEmpty())
+                {
+                    TimeUnit.MILLISECONDS.sleep(idleMillis);
+                    continue;
+                }
+                List<QueueMessage> done = new ArrayList<>(messages.size());
+                for (QueueMessage message : messages)
+                {
+                    long start = System.nanoTime();
+                    try
+                    {
+                        handler.accept(message);
+                        done.add(message);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        log.error("redis work queue {} failed to handle message {}", name, message.getId(), e);
+                        requeue(message);
+                    }
+                    finally
+                    {
+                        processMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        processed.increment();
+                    }
+                }
+                ackAll(done);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e)
+            {
+                log.error("redis work queue {} consumer error", name, e);
+                try
+                {
+                    TimeUnit.MILLISECONDS.sleep(idleMillis);
+                }
+                catch (InterruptedException interrupted)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * 待处理的消息数
+     */
+    public Long getDepth()
+    {
+        return stringRedisTemplate.opsForList().size(readyKey);
+    }
+
+    /**
+     * 已出队未ack的消息数
+     */
+    public Long getProcessingDepth()
+    {
+        return stringRedisTemplate.opsForList().size(processingKey);
+    }
+
+    /**
+     * 等待退避到期的重试消息数
+     */
+    public Long getDelayedDepth()
+    {
+        return stringRedisTemplate.opsForZSet().zCard(delayedKey);
+    }
+
+    /**
+     * 死信列表中的消息数
+     */
+    public Long getDeadLetterDepth()
+    {
+        return stringRedisTemplate.opsForList().size(deadKey);
+    }
+
+    /**
+     * 查看死信列表中最近的消息，不会移除
+     *
+     * @param count 最多返回的条数
+     */
+    public List<QueueMessage> getDeadLetters(int count)
+    {
+        List<String> items = stringRedisTemplate.opsForList().range(deadKey, 0, count - 1);
+        if (null == items || items.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        return items.stream().map(QueueMessage::decode).collect(Collectors.toList());
+    }
+
+    /**
+     * 待处理列表中最早的消息已等待的毫秒数，队列为空时为0
+     */
+    public long getLagMillis()
+    {
+        String oldest = stringRedisTemplate.opsForList().index(readyKey, -1);
+        if (null == oldest)
+        {
+            return 0L;
+        }
+        QueueMessage message = QueueMessage.decode(oldest);
+        return message.getEnqueuedAt() > 0 ? Math.max(0L, System.currentTimeMillis() - message.getEnqueuedAt()) : 0L;
+    }
+
+    public long getPushedCount()
+    {
+        return pushed.sum();
+    }
+
+    public long getPoppedCount()
+    {
+        return popped.sum();
+    }
+
+    public long getAckedCount()
+    {
+        return acked.sum();
+    }
+
+    public long getRequeuedCount()
+    {
+        return requeued.sum();
+    }
+
+    public long getReapedCount()
+    {
+        return reaped.sum();
+    }
+
+    public long getDeadLetteredCount()
+    {
+        return deadLettered.sum();
+    }
+
+    /**
+     * 出队时消息在队列中的平均等待毫秒数
+     */
+    public double getAverageWaitMillis()
+    {
+        long count = popped.sum();
+        return count == 0 ? 0D : (double) waitMillis.sum() / count;
+    }
+
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis.get();
+    }
+
+    /**
+     * 消费者处理单条消息的平均毫秒数
+     */
+    public double getAverageProcessMillis()
+    {
+        long count = processed.sum();
+        return count == 0 ? 0D : (double) processMillis.sum() / count;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+}
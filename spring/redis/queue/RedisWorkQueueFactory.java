@@ -0,0 +1,45 @@
+package com.inspur.bss.waf.redis.queue;
+
+import com.inspur.bss.waf.redis.RedisHelper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按名称获取工作队列，同名队列在进程内共享同一个实例(指标也共享)
+ */
+@Component
+public class RedisWorkQueueFactory
+{
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisHelper redisHelper;
+
+    private final Map<String, RedisWorkQueue> queues = new ConcurrentHashMap<>();
+
+    @Value("${waf.redis.queue.visibility-timeout-millis:60000}")
+    private long visibilityTimeoutMillis;
+
+    @Value("${waf.redis.queue.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${waf.redis.queue.retry-backoff-millis:1000}")
+    private long retryBackoffMillis;
+
+    @Autowired
+    public RedisWorkQueueFactory(StringRedisTemplate stringRedisTemplate, RedisHelper redisHelper)
+    {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisHelper = redisHelper;
+    }
+
+    public RedisWorkQueue getQueue(String name)
+    {
+        return queues.computeIfAbsent(name, key -> new RedisWorkQueue(key, stringRedisTemplate, redisHelper, visibilityTimeoutMillis,
+                maxAttempts, retryBackoffMillis));
+    }
+}
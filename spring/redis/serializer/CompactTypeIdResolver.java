@@ -0,0 +1,120 @@
+package com.inspur.bss.waf.redis.serializer;
+
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.DatabindContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.jsontype.impl.ClassNameIdResolver;
+import com.fasterxml.jackson.databind.jsontype.impl.TypeIdResolverBase;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * 二进制序列化使用的短类型id
+ * 【常用的JDK类型与waf.redis.serializer.type-aliases中登记的类型写入短别名，其余类型仍写入完整类名；
+ * 读取时先按别名解析，不是别名的按类名解析，因此切换前写入的完整类名仍可读；
+ * 别名一经写入不能修改或复用，新增别名需所有节点先升级到可识别该别名的配置后再写入】
+ */
+public class CompactTypeIdResolver extends TypeIdResolverBase
+{
+    /**
+     * 内置别名，只能追加不能修改
+     */
+    private static final Map<String, Class<?>> BUILT_IN_ALIASES = new LinkedHashMap<>();
+
+    static
+    {
+        BUILT_IN_ALIASES.put("L", ArrayList.class);
+        BUILT_IN_ALIASES.put("LL", LinkedList.class);
+        BUILT_IN_ALIASES.put("M", HashMap.class);
+        BUILT_IN_ALIASES.put("LM", LinkedHashMap.class);
+        BUILT_IN_ALIASES.put("TM", TreeMap.class);
+        BUILT_IN_ALIASES.put("S", HashSet.class);
+        BUILT_IN_ALIASES.put("LS", LinkedHashSet.class);
+        BUILT_IN_ALIASES.put("TS", TreeSet.class);
+        BUILT_IN_ALIASES.put("J", Long.class);
+        BUILT_IN_ALIASES.put("BD", BigDecimal.class);
+        BUILT_IN_ALIASES.put("BI", BigInteger.class);
+        BUILT_IN_ALIASES.put("D", Date.class);
+        BUILT_IN_ALIASES.put("TSP", java.sql.Timestamp.class);
+    }
+
+    private final Map<Class<?>, String> idsByType = new HashMap<>();
+
+    private final Map<String, JavaType> typesById = new HashMap<>();
+
+    private final ClassNameIdResolver classNameResolver;
+
+    /**
+     * @param aliases 应用登记的别名，格式 别名=完整类名，逗号分隔；别名不能包含'.'，避免与类名混淆
+     */
+    public CompactTypeIdResolver(String aliases)
+    {
+        super(TypeFactory.defaultInstance().constructType(Object.class), TypeFactory.defaultInstance());
+        this.classNameResolver = new ClassNameIdResolver(_baseType, _typeFactory);
+        for (Map.Entry<String, Class<?>> alias : BUILT_IN_ALIASES.entrySet())
+        {
+            register(alias.getKey(), alias.getValue());
+        }
+        for (String pair : StringUtils.commaDelimitedListToStringArray(StringUtils.trimAllWhitespace(aliases)))
+        {
+            int index = pair.indexOf('=');
+            if (index <= 0 || index == pair.length() - 1)
+            {
+                throw new IllegalArgumentException("Invalid redis type alias: " + pair);
+            }
+            register(pair.substring(0, index), ClassUtils.resolveClassName(pair.substring(index + 1), ClassUtils.getDefaultClassLoader()));
+        }
+    }
+
+    private void register(String id, Class<?> type)
+    {
+        if (id.indexOf('.') >= 0 || id.indexOf('<') >= 0 || id.indexOf('[') >= 0)
+        {
+            throw new IllegalArgumentException("Redis type alias must not look like a class name: " + id);
+        }
+        if (typesById.containsKey(id) || idsByType.containsKey(type))
+        {
+            throw new IllegalArgumentException("Duplicate redis type alias: " + id + "=" + type.getName());
+        }
+        idsByType.put(type, id);
+        typesById.put(id, _typeFactory.constructType(type));
+    }
+
+    @Override
+    public String idFromValue(Object value)
+    {
+        return idFromValueAndType(value, value.getClass());
+    }
+
+    @Override
+    public String idFromValueAndType(Object value, Class<?> suggestedType)
+    {
+        String id = idsByType.get(suggestedType);
+        return null != id ? id : classNameResolver.idFromValueAndType(value, suggestedType);
+    }
+
+    @Override
+    public JavaType typeFromId(DatabindContext context, String id) throws IOException
+    {
+        JavaType type = typesById.get(id);
+        return null != type ? type : classNameResolver.typeFromId(context, id);
+    }
+
+    @Override
+    public String getDescForKnownTypeIds()
+    {
+        return "short alias or fully-qualified class name";
+    }
+
+    @Override
+    public JsonTypeInfo.Id getMechanism()
+    {
+        return JsonTypeInfo.Id.CUSTOM;
+    }
+}
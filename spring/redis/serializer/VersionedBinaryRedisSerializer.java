@@ -0,0 +1,159 @@
+package com.inspur.bss.waf.redis.serializer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 带版本头的二进制值序列化
+ * 【格式：魔数(1字节) + 版本(1字节) + 标志位(1字节) + 载荷；载荷为Smile编码，
+ * 超过压缩阈值时用Deflate压缩；没有魔数头的值按旧的JSON格式交给legacyReader解码，
+ * JSON文本不会以魔数0xFE开头，新旧数据可以混存，切换后旧值在过期或被覆盖前仍可读；
+ * 类型信息由smileMapper的配置决定，RedisConfig中使用{@link CompactTypeIdResolver}写入短别名】
+ */
+public class VersionedBinaryRedisSerializer implements RedisSerializer<Object>
+{
+    static final byte MAGIC = (byte) 0xFE;
+
+    static final byte VERSION_SMILE = 1;
+
+    private static final byte FLAG_DEFLATE = 1;
+
+    private static final int HEADER_LENGTH = 3;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ObjectMapper smileMapper;
+
+    private final RedisSerializer<Object> legacyReader;
+
+    private final int compressThreshold;
+
+    /**
+     * @param smileMapper       基于SmileFactory的ObjectMapper，类型信息配置需与写入时一致
+     * @param legacyReader      解码旧格式(无魔数头)的值
+     * @param compressThreshold 载荷超过该字节数时压缩，小于等于0表示不压缩
+     */
+    public VersionedBinaryRedisSerializer(ObjectMapper smileMapper, RedisSerializer<Object> legacyReader, int compressThreshold)
+    {
+        this.smileMapper = smileMapper;
+        this.legacyReader = legacyReader;
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException
+    {
+        if (null == value)
+        {
+            return EMPTY;
+        }
+        byte[] payload;
+        try
+        {
+            payload = smileMapper.writeValueAsBytes(value);
+        }
+        catch (IOException e)
+        {
+            throw new SerializationException("Could not write Smile: " + e.getMessage(), e);
+        }
+        byte flags = 0;
+        if (compressThreshold > 0 && payload.length > compressThreshold)
+        {
+            byte[] compressed = deflate(payload);
+            if (compressed.length < payload.length)
+            {
+                payload = compressed;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+        byte[] bytes = new byte[HEADER_LENGTH + payload.length];
+        bytes[0] = MAGIC;
+        bytes[1] = VERSION_SMILE;
+        bytes[2] = flags;
+        System.arraycopy(payload, 0, bytes, HEADER_LENGTH, payload.length);
+        return bytes;
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException
+    {
+        if (null == bytes || bytes.length == 0)
+        {
+            return null;
+        }
+        if (bytes[0] != MAGIC)
+        {
+            return legacyReader.deserialize(bytes);
+        }
+        if (bytes.length < HEADER_LENGTH || bytes[1] != VERSION_SMILE)
+        {
+            throw new SerializationException("Unsupported redis value version: " + (bytes.length > 1 ? bytes[1] : -1));
+        }
+        try
+        {
+            if ((bytes[2] & FLAG_DEFLATE) != 0)
+            {
+                byte[] payload = inflate(bytes);
+                return smileMapper.readValue(payload, Object.class);
+            }
+            return smileMapper.readValue(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, Object.class);
+        }
+        catch (IOException | DataFormatException e)
+        {
+            throw new SerializationException("Could not read Smile: " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] deflate(byte[] payload)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(payload);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished())
+            {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) throws DataFormatException
+    {
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished())
+            {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new DataFormatException("Truncated deflate payload");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 调用arnhem接口的连接池
+ * 【HttpClient默认每个路由只有2个连接，并发调用同一个厂商地址时会在连接上排队；
+ * 这里按总数与单路由上限复用连接，后台定期清理空闲与过期连接，
+ * 服务端未返回Keep-Alive超时时按keepAliveSeconds复用；连接最长存活connectionTtlSeconds后不再复用(便于感知DNS变化)，
+ * 空闲超过validateAfterInactivityMillis的连接复用前先检查；连接池使用情况可通过Micrometer观察】
+ *
+ * @Author hexinyu
+ */
+@Slf4j
+@Component
+public class ArnhemHttpClientPool implements DisposableBean {
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient httpClient;
+
+    private final int connectionRequestTimeout;
+
+    @Autowired
+    public ArnhemHttpClientPool(@Value("${waf.arnhem.http.max-total:200}") int maxTotal,
+                                @Value("${waf.arnhem.http.max-per-route:50}") int maxPerRoute,
+                                @Value("${waf.arnhem.http.idle-evict-seconds:30}") long idleEvictSeconds,
+                                @Value("${waf.arnhem.http.keep-alive-seconds:30}") long keepAliveSeconds,
+                                @Value("${waf.arnhem.http.connection-request-timeout:5000}") int connectionRequestTimeout,
+                                @Value("${waf.arnhem.http.connection-ttl-seconds:120}") long connectionTtlSeconds,
+                                @Value("${waf.arnhem.http.validate-after-inactivity-millis:2000}") int validateAfterInactivityMillis,
+                                ObjectProvider<MeterRegistry> meterRegistry) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+        this.connectionManager = new PoolingHttpClientConnectionManager(connectionTtlSeconds, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        //空闲超过该时间的连接在复用前检查是否已被服务端关闭
+        connectionManager.setValidateAfterInactivity(validateAfterInactivityMillis);
+        this.httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy(TimeUnit.SECONDS.toMillis(keepAliveSeconds)))
+                .evictExpiredConnections()
+                .evictIdleConnections(idleEvictSeconds, TimeUnit.SECONDS)
+                .setDefaultRequestConfig(RequestConfig.custom().setConnectionRequestTimeout(connectionRequestTimeout).build())
+                .build();
+        MeterRegistry registry = meterRegistry.getIfAvailable();
+        if (registry != null) {
+            Gauge.builder("http.client.pool.leased", connectionManager, manager -> manager.getTotalStats().getLeased())
+                    .tag("client", "arnhem").register(registry);
+            Gauge.builder("http.client.pool.pending", connectionManager, manager -> manager.getTotalStats().getPending())
+                    .tag("client", "arnhem").register(registry);
+            Gauge.builder("http.client.pool.available", connectionManager, manager -> manager.getTotalStats().getAvailable())
+                    .tag("client", "arnhem").register(registry);
+            Gauge.builder("http.client.pool.saturation", connectionManager, ArnhemHttpClientPool::saturation)
+                    .tag("client", "arnhem").register(registry);
+        }
+    }
+
+    /**
+     * 创建使用连接池的请求工厂，超时时间由RestTemplateBuilder设置
+     */
+    public HttpComponentsClientHttpRequestFactory createRequestFactory() {
+        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+        requestFactory.setConnectionRequestTimeout(connectionRequestTimeout);
+        return requestFactory;
+    }
+
+    /**
+     * 连接池整体使用情况：leased已借出 pending等待连接 available空闲 max上限
+     */
+    public PoolStats getTotalStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        httpClient.close();
+    }
+
+    private static double saturation(PoolingHttpClientConnectionManager manager) {
+        PoolStats stats = manager.getTotalStats();
+        return stats.getMax() == 0 ? 0D : (double) stats.getLeased() / stats.getMax();
+    }
+
+    /**
+     * 优先使用服务端Keep-Alive响应头中的timeout，没有时使用默认值
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(long defaultKeepAliveMillis) {
+        return (HttpResponse response, HttpContext context) -> {
+            HeaderElementIterator iterator = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (iterator.hasNext()) {
+                HeaderElement element = iterator.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException e) {
+                        log.debug("invalid keep-alive timeout {}", element.getValue());
+                    }
+                }
+            }
+            return defaultKeepAliveMillis;
+        };
+    }
+}
@@ -0,0 +1,163 @@
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 边读边记录响应体前缀的响应包装
+ * 【响应体不预先读入内存，调用方读取时把前limit个字节复制一份，读完或关闭时打印一次日志，
+ * 日志带上请求url与响应状态，并发调用时可以对应到请求；超过limit的部分直接透传】
+ *
+ * @Author hexinyu
+ */
+@Slf4j
+public class LoggingClientHttpResponse implements ClientHttpResponse {
+    private final ClientHttpResponse response;
+    private final int limit;
+    private final String url;
+    private final String status;
+    private TeeInputStream body;
+
+    /**
+     * @param url    请求url，记录在响应体日志中
+     * @param status 响应状态，记录在响应体日志中
+     */
+    public LoggingClientHttpResponse(ClientHttpResponse response, int limit, String url, String status) {
+        this.response = response;
+        this.limit = limit;
+        this.url = url;
+        this.status = status;
+    }
+
+    /**
+     * 读取响应体的前limit个字节，用于错误处理时记录日志，不读取剩余部分
+     */
+    public static String readPrefix(ClientHttpResponse response, int limit) throws IOException {
+        InputStream inputStream = response.getBody();
+        byte[] buffer = new byte[limit];
+        int length = 0;
+        int read;
+        while (length < limit && (read = inputStream.read(buffer, length, limit - length)) != -1) {
+            length += read;
+        }
+        return decodeUtf8Prefix(buffer, length) + (inputStream.read() != -1 ? "..." : "");
+    }
+
+    /**
+     * 把字节前缀解码为UTF-8字符串，末尾被截断的不完整字符丢弃，不输出替换字符
+     */
+    public static String decodeUtf8Prefix(byte[] bytes, int length) {
+        int end = length;
+        //最多回退3个后续字节(10xxxxxx)找到最后一个字符的首字节
+        int lead = end - 1;
+        while (lead >= 0 && lead > end - 4 && (bytes[lead] & 0xC0) == 0x80) {
+            lead--;
+        }
+        if (lead >= 0) {
+            int b = bytes[lead] & 0xFF;
+            int charLength = b < 0x80 ? 1 : b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+            if (lead + charLength > end) {
+                end = lead;
+            }
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return response.getHeaders();
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+        if (body == null) {
+            body = new TeeInputStream(response.getBody());
+        }
+        return body;
+    }
+
+    @Override
+    public HttpStatus getStatusCode() throws IOException {
+        return response.getStatusCode();
+    }
+
+    @Override
+    public int getRawStatusCode() throws IOException {
+        return response.getRawStatusCode();
+    }
+
+    @Override
+    public String getStatusText() throws IOException {
+        return response.getStatusText();
+    }
+
+    @Override
+    public void close() {
+        if (body != null) {
+            body.logOnce();
+        }
+        response.close();
+    }
+
+    private final class TeeInputStream extends FilterInputStream {
+        private final ByteArrayOutputStream prefix = new ByteArrayOutputStream(Math.min(limit, 1024));
+        private boolean truncated;
+        private boolean logged;
+
+        private TeeInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                logOnce();
+            } else {
+                capture(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                logOnce();
+            } else {
+                capture(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            logOnce();
+            super.close();
+        }
+
+        private void capture(byte[] b, int off, int len) {
+            int remaining = limit - prefix.size();
+            if (remaining > 0) {
+                prefix.write(b, off, Math.min(remaining, len));
+            }
+            if (len > remaining) {
+                truncated = true;
+            }
+        }
+
+        private void logOnce() {
+            if (logged) {
+                return;
+            }
+            logged = true;
+            log.info("response url: {}, status: {}, body: {}{}", url, status, decodeUtf8Prefix(prefix.toByteArray(), prefix.size()), truncated ? "..." : "");
+        }
+    }
+}
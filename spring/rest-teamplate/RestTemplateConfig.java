@@ -10,6 +10,7 @@ import org.springframework.amqp.rabbit.core.RabbitMessagingTemplate;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -19,7 +20,6 @@ import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
-import org.springframework.util.StreamUtils;
 import org.springframework.validation.beanvalidation.MethodValidationInterceptor;
 import org.springframework.web.client.RestTemplate;
 
@@ -45,6 +45,12 @@ public class GlobalConfig {
 
     private final RestTemplateBuilder builder;
 
+    /**
+     * 请求/响应体日志最多记录的字节数
+     */
+    @Value("${waf.arnhem.http.log-body-limit:2048}")
+    private int logBodyLimit;
+
     @Autowired
     public GlobalConfig(RestTemplateBuilder builder) {
         this.builder = builder;
@@ -54,31 +60,47 @@ public class GlobalConfig {
 
     private ClientHttpResponse executeAndLog(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
         String url = request.getURI().toString();
-        String bodyStr = new String(body, StandardCharsets.UTF_8);
-        log.info("request {} url: {}, contentType: {}, token: {}, body: {}"
-                , request.getMethodValue()
-                , url
-                , request.getHeaders().getContentType()
-                , request.getHeaders().get(HttpHeaders.AUTHORIZATION)
-                , bodyStr
-        );
+        boolean infoEnabled = log.isInfoEnabled();
+        if (infoEnabled) {
+            log.info("request {} url: {}, contentType: {}, token: {}, body: {}"
+                    , request.getMethodValue()
+                    , url
+                    , request.getHeaders().getContentType()
+                    , request.getHeaders().get(HttpHeaders.AUTHORIZATION)
+                    , bodyPrefix(body)
+            );
+        }
         ClientHttpResponse execute = execution.execute(request, body);
-        byte[] bodyBytes = StreamUtils.copyToByteArray(execute.getBody());
-        log.info("response code {}, body: {}", execute.getStatusText(), new String(bodyBytes, StandardCharsets.UTF_8));
         if (
                 !HttpStatus.OK.equals(execute.getStatusCode())
                         && !HttpStatus.MOVED_PERMANENTLY.equals(execute.getStatusCode())
                         && !HttpStatus.FOUND.equals(execute.getStatusCode())
 
         ) {
-            log.info("request failed : {} ,httpCode :{},params :{}", url, execute.getStatusText(), bodyStr);
+            //失败时只读取响应体前缀用于日志，随后关闭响应
+            try {
+                log.info("request failed : {} ,httpCode :{},params :{}, response body: {}", url, execute.getStatusText(),
+                        bodyPrefix(body), LoggingClientHttpResponse.readPrefix(execute, logBodyLimit));
+            } finally {
+                execute.close();
+            }
             throw new ServiceException(ExceptionCode.API.API_REQUEST_FAILED, "系统内部异常");
         }
-        return new ClientHttpResponseWrapper(execute, bodyBytes);
+        if (!infoEnabled) {
+            return execute;
+        }
+        return new LoggingClientHttpResponse(execute, logBodyLimit, url, execute.getStatusText());
+    }
+
+    private String bodyPrefix(byte[] body) {
+        if (body.length <= logBodyLimit) {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+        return LoggingClientHttpResponse.decodeUtf8Prefix(body, logBodyLimit) + "...";
     }
 
     @Bean("arnhemRestTemplate")
-    public RestTemplate arnhemRestTemplate(ArnhemTokenProvider tokenProvider) {
+    public RestTemplate arnhemRestTemplate(ArnhemTokenProvider tokenProvider, ArnhemHttpClientPool httpClientPool) {
         ObjectMapper objectMapper = new Jackson2ObjectMapperBuilder().simpleDateFormat(DateSymbols.YYYY_MM_DD_HH_MM_SS)
                 .createXmlMapper(Boolean.FALSE)
                 .failOnUnknownProperties(Boolean.FALSE)
@@ -89,7 +111,8 @@ public class GlobalConfig {
                 .build();
 
         MappingJackson2HttpMessageConverter jacksonConverter = new MappingJackson2HttpMessageConverter(objectMapper);
-        return builder.setConnectTimeout(MAX_CONNECT_TIME_OUT)
+        return builder.requestFactory(httpClientPool::createRequestFactory)
+                .setConnectTimeout(MAX_CONNECT_TIME_OUT)
                 .setReadTimeout(MAX_READ_TIME_OUT)
                 .interceptors((request, body, execution) -> {
                     HttpHeaders headers = request.getHeaders();